@@ -0,0 +1,189 @@
+package org.kelly_ann.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.kelly_ann.ExcelWriter;
+import org.kelly_ann.OneDayMarketAction;
+import org.kelly_ann.SymbolTable;
+import org.kelly_ann.UnzipUtility;
+
+public class PipelineBenchmark {
+	// this class times the hot paths of the project on synthetic bhavcopies of different sizes:
+	//   parse      new OneDayMarketAction(csv) with the BufferedReader and with the memory-mapped parser
+	//   sort       getSortedMovers() (i.e. Collections.sort with StockMoveComparator) and getTopMovers()
+	//   unzip      UnzipUtility.unzip() (which goes through extractFile()), unzipParallel() and UnzipUtility.zip()
+	//   export     ExcelWriter.createFile()
+	// for every stage it reports throughput, the bytes allocated per operation and latency percentiles.
+	//
+	// note: this is a small self-contained harness rather than JMH, because the project is a plain Eclipse project
+	// with its jars in libs/ and JMH isn't one of them. it follows the same recipe: warm-up iterations that are
+	// thrown away, then measured iterations, with allocation read from the thread's allocation counter
+	// (what JMH's "gc" profiler reports as gc.alloc.rate.norm).
+	//
+	// usage: PipelineBenchmark [--rows 2000,20000,200000,2000000] [--warmup 5] [--iterations 10] [--out results.txt]
+	// the results committed in bench/baseline.txt were made with the default settings and -Xmx3g (the 2M-row parse needs it).
+
+	private static final int[] DEFAULT_ROWS = {2000, 20000, 200000, 2000000};
+
+	// a stage of the pipeline that can be run over and over
+	private interface Operation {
+		void run() throws Exception;
+	}
+
+	private final int warmup;
+	private final int iterations;
+	private final PrintStream report;
+
+	public PipelineBenchmark(int warmup, int iterations, PrintStream report) {
+		this.warmup = warmup;
+		this.iterations = iterations;
+		this.report = report;
+	}
+
+
+	public static void main(String[] args) throws Exception {
+
+		int[] rows = DEFAULT_ROWS;
+		int warmup = 5;
+		int iterations = 10;
+		String out = null;
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("--rows")) {
+				String[] sizes = args[++i].split(",");
+				rows = new int[sizes.length];
+				for(int j = 0; j < sizes.length; j++) {
+					rows[j] = Integer.parseInt(sizes[j]);
+				}
+			}
+			else if(args[i].equals("--warmup")) {
+				warmup = Integer.parseInt(args[++i]);
+			}
+			else if(args[i].equals("--iterations")) {
+				iterations = Integer.parseInt(args[++i]);
+			}
+			else if(args[i].equals("--out")) {
+				out = args[++i];
+			}
+		}
+
+		PrintStream report = (out == null) ? System.out : new PrintStream(new FileOutputStream(out));
+		try {
+			report.println("# StockExchangeIO pipeline benchmark");
+			report.println("# java " + System.getProperty("java.version") + ", " + System.getProperty("os.name") + ", "
+					+ Runtime.getRuntime().availableProcessors() + " cpus, max heap " + (Runtime.getRuntime().maxMemory() >> 20)
+					+ " MB, warmup=" + warmup + ", iterations=" + iterations);
+			report.println(String.format(Locale.ROOT, "%-28s %10s %12s %14s %10s %10s %10s",
+					"benchmark", "rows", "ops/s", "alloc B/op", "p50 ms", "p90 ms", "p99 ms"));
+
+			PipelineBenchmark benchmark = new PipelineBenchmark(warmup, iterations, report);
+			for(int size : rows) {
+				benchmark.runAll(size);
+			}
+		}
+		finally {
+			if(report != System.out) {
+				report.close();
+			}
+		}
+
+	}
+
+
+	// run every stage against one generated file of "rows" rows
+	public void runAll(int rows) throws Exception {
+
+		// every size starts with an empty symbol table, otherwise the names of all the smaller days would still be in
+		// the shared one (it never shrinks) and the bigger days would be measured against a table they didn't fill
+		SymbolTable.setGlobal(new SymbolTable());
+
+		final File dir = new File(System.getProperty("java.io.tmpdir"), "stockexchangeio-bench-" + rows);
+		final File csv = SyntheticBhavcopy.writeCsv(dir, rows, 42L);
+		final File zip = SyntheticBhavcopy.writeZip(csv);
+		final File unzipDir = new File(dir, "unzipped");
+		final File zipDir = new File(dir, "zipped");
+		final File xls = new File(dir, "movers.xls");
+
+		final OneDayMarketAction day = new OneDayMarketAction(csv.getPath());
+
+		measure("parse.bufferedReader", rows, () -> new OneDayMarketAction(csv.getPath()));
+		measure("parse.memoryMapped", rows, () -> new OneDayMarketAction(csv.getPath(), true));
+		measure("sort.getSortedMovers", rows, () -> day.getSortedMovers());
+		// a fresh day each time, otherwise getTopMovers() would only be timing its cache
+		measure("sort.getTopMovers(5)", rows, () -> new OneDayMarketAction(day.getMarketDay(), "bench")
+				.getTopMovers(5, OneDayMarketAction.MoveDirection.LOSERS));
+		measure("unzip.unzip", rows, () -> UnzipUtility.unzip(zip.getPath(), unzipDir.getPath()));
+		measure("unzip.unzipParallel", rows, () -> UnzipUtility.unzipParallel(zip.getPath(), unzipDir.getPath(),
+				Runtime.getRuntime().availableProcessors()));
+		measure("unzip.zip", rows, () -> UnzipUtility.zip(csv.getPath(), zipDir.getPath()));
+		measure("export.createFile", rows, () -> quietly(() -> new ExcelWriter(day).createFile(xls.getPath())));
+
+	}
+
+
+	// warm up, then time each measured iteration on its own and print one line of results
+	private void measure(String name, int rows, Operation operation) throws Exception {
+
+		for(int i = 0; i < warmup; i++) {
+			operation.run();
+		}
+
+		long[] nanos = new long[iterations];
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for(int i = 0; i < iterations; i++) {
+			long opStart = System.nanoTime();
+			operation.run();
+			nanos[i] = System.nanoTime() - opStart;
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocatedAfter = allocatedBytes();
+
+		Arrays.sort(nanos);
+		double opsPerSecond = iterations / (elapsed / 1e9);
+		long allocatedPerOp = (allocatedBefore < 0) ? -1 : (allocatedAfter - allocatedBefore) / iterations;
+
+		report.println(String.format(Locale.ROOT, "%-28s %10d %12.2f %14d %10.3f %10.3f %10.3f",
+				name, rows, opsPerSecond, allocatedPerOp,
+				percentile(nanos, 0.50) / 1e6, percentile(nanos, 0.90) / 1e6, percentile(nanos, 0.99) / 1e6));
+
+	}
+
+	// nearest-rank percentile of sorted timings
+	private static long percentile(long[] sorted, double fraction) {
+		int rank = (int) Math.ceil(fraction * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+
+	// the bytes this thread has allocated so far, or -1 if the JVM can't tell us
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	// ExcelWriter prints a confirmation line every time, which would drown the report
+	private static void quietly(Operation operation) throws Exception {
+		PrintStream original = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+				// discard
+			}
+		}));
+		try {
+			operation.run();
+		}
+		finally {
+			System.setOut(original);
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+package org.kelly_ann.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class SyntheticBhavcopy {
+	// this class makes up NSE-style bhavcopy files of any size so the benchmarks can run offline
+	// the rows look like the real thing (same columns, ~80% EQ series, prices with 2 decimals)
+	// and the same seed always gives the same file, so runs can be compared with each other.
+
+	// the header of a real bhavcopy
+	public static final String HEADER = "SYMBOL,SERIES,OPEN,HIGH,LOW,CLOSE,LAST,PREVCLOSE,TOTTRDQTY,TOTTRDVAL,TIMESTAMP,TOTALTRADES,ISIN,";
+
+	// the other series that show up next to EQ in a real file
+	private static final String[] OTHER_SERIES = {"BE", "BZ", "N1", "SM", "IL"};
+
+
+	// write a CSV with "rows" data rows (plus the header) into dir and return it
+	public static File writeCsv(File dir, int rows, long seed) throws IOException {
+
+		dir.mkdirs();
+		File csv = new File(dir, "cm" + rows + "bhav.csv");
+		Random random = new Random(seed);
+
+		BufferedWriter bw = new BufferedWriter(new FileWriter(csv));
+		try {
+			bw.write(HEADER);
+			bw.newLine();
+			for(int i = 0; i < rows; i++) {
+				String series = random.nextInt(10) < 8 ? "EQ" : OTHER_SERIES[random.nextInt(OTHER_SERIES.length)];
+				double prevClose = 1 + random.nextInt(500000) / 100.0;
+				double close = round2(prevClose * (1 + (random.nextGaussian() * 0.03)));
+				double open = round2(prevClose * (1 + (random.nextGaussian() * 0.01)));
+				double high = round2(Math.max(open, close) * (1 + random.nextDouble() * 0.02));
+				double low = round2(Math.min(open, close) * (1 - random.nextDouble() * 0.02));
+				long quantity = 1 + random.nextInt(1000000);
+
+				bw.write("SYM" + i);
+				bw.write(',');
+				bw.write(series);
+				bw.write(',');
+				bw.write(format2(open));
+				bw.write(',');
+				bw.write(format2(high));
+				bw.write(',');
+				bw.write(format2(low));
+				bw.write(',');
+				bw.write(format2(close));
+				bw.write(',');
+				bw.write(format2(close));
+				bw.write(',');
+				bw.write(format2(prevClose));
+				bw.write(',');
+				bw.write(String.valueOf(quantity));
+				bw.write(',');
+				bw.write(format2(quantity * close));
+				bw.write(",17-JUL-2015,");
+				bw.write(String.valueOf(1 + random.nextInt(5000)));
+				bw.write(",INE");
+				bw.write(String.valueOf(100000 + i));
+				bw.write("01010,");
+				bw.newLine();
+			}
+		}
+		finally {
+			bw.close();
+		}
+		return csv;
+
+	}
+
+	// zip a CSV into <name>.zip next to it, the way the exchange ships it (one entry per archive)
+	public static File writeZip(File csv) throws IOException {
+
+		File zip = new File(csv.getParentFile(), csv.getName() + ".zip");
+		ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zip)));
+		InputStream in = new FileInputStream(csv);
+		try {
+			zos.putNextEntry(new ZipEntry(csv.getName()));
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while((read = in.read(buffer)) != -1) {
+				zos.write(buffer, 0, read);
+			}
+			zos.closeEntry();
+		}
+		finally {
+			in.close();
+			zos.close();
+		}
+		return zip;
+
+	}
+
+
+	private static double round2(double value) {
+		return Math.round(value * 100) / 100.0;
+	}
+
+	// a plain "1234.56" without going through String.format() (which is slow and locale-dependent)
+	private static String format2(double value) {
+		long cents = Math.round(value * 100);
+		long fraction = cents % 100;
+		return (cents / 100) + (fraction < 10 ? ".0" : ".") + fraction;
+	}
+
+}
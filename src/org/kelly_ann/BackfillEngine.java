@@ -0,0 +1,320 @@
+package org.kelly_ann;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+public class BackfillEngine {
+	// this class downloads, unzips and parses a whole range of trading days instead of the one day Main does.
+	// the days are fetched concurrently on a fixed-size thread pool, with:
+	// 1. a limit on how many requests run against the same host at once (so we don't hammer the exchange)
+	// 2. retries with an exponential backoff for days that fail with an I/O error
+	// 3. a report at the end saying which days were loaded, which had no archive and which failed
+	// the base url can be a "file:" url, so the engine can be pointed at a local mirror of the archives for testing.
+
+	// the exchange's archive location, the day's path is added on to this (see archiveUrl())
+	public static final String NSE_BASE_URL = "http://www.nseindia.com/content/historical/EQUITIES";
+
+	// the exchange publishes month names as upper-case English abbreviations, e.g. cm17JUL2015bhav.csv.zip
+	private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("MMM", Locale.ENGLISH);
+	private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("dd", Locale.ENGLISH);
+
+	// the doubling backoff stops growing here (unless initialBackoffMillis is already longer)
+	private static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+
+	private final String baseUrl;
+	private final int threads;
+	private final int maxPerHost;
+
+	// retry settings, see setRetries()
+	private int maxAttempts = 3;
+	private long initialBackoffMillis = 1000;
+
+	// weekends never have a bhavcopy so by default we don't even ask for them
+	private boolean skipWeekends = true;
+
+	// if set, archives are fetched through this cache instead of straight from the url
+	private DownloadCache downloadCache;
+
+	// what to do with malformed rows in the archives, see setRowErrorPolicy()
+	private RowErrorPolicy rowErrorPolicy = new RowErrorPolicy();
+
+	// one permit pool per host, shared by all the worker threads
+	private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+
+	// threads is the size of the worker pool, maxPerHost the most downloads allowed against a single host at once
+	public BackfillEngine(String baseUrl, int threads, int maxPerHost) {
+		if(threads < 1 || maxPerHost < 1) {
+			throw new IllegalArgumentException("threads and maxPerHost must be at least 1");
+		}
+		this.baseUrl = baseUrl;
+		this.threads = threads;
+		this.maxPerHost = maxPerHost;
+	}
+
+
+	// maxAttempts includes the first try, the wait doubles after every failed attempt starting at initialBackoffMillis
+	// (up to a minute, see backoffMillis())
+	public void setRetries(int maxAttempts, long initialBackoffMillis) {
+		if(maxAttempts < 1 || initialBackoffMillis < 0) {
+			throw new IllegalArgumentException("maxAttempts must be at least 1 and initialBackoffMillis not negative");
+		}
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMillis = initialBackoffMillis;
+	}
+
+	public void setSkipWeekends(boolean skipWeekends) {
+		this.skipWeekends = skipWeekends;
+	}
+
+	public void setDownloadCache(DownloadCache downloadCache) {
+		this.downloadCache = downloadCache;
+	}
+
+	// bad rows are skipped (and quarantined if the policy says so) instead of costing us the whole day.
+	// a day whose error budget runs out counts as a failed attempt, so it is retried (in case the download was cut)
+	// and reported in getFailedDays() if it keeps happening. every loaded day's counts are in its getParseReport()
+	public void setRowErrorPolicy(RowErrorPolicy rowErrorPolicy) {
+		this.rowErrorPolicy = rowErrorPolicy;
+	}
+
+
+	// build the url of one day's archive using the same layout as the one in Main, e.g.
+	// <base>/2015/JUL/cm17JUL2015bhav.csv.zip
+	public static String archiveUrl(String baseUrl, LocalDate day) {
+		String month = MONTH_FORMAT.format(day).toUpperCase(Locale.ENGLISH);
+		String year = String.valueOf(day.getYear());
+		return baseUrl + "/" + year + "/" + month + "/cm" + DAY_FORMAT.format(day) + month + year + "bhav.csv.zip";
+	}
+
+
+	// fetch, unzip and parse every day from "from" to "to" (both included) and report how it went
+	public BackfillReport run(LocalDate from, LocalDate to) throws InterruptedException {
+
+		long start = System.nanoTime();
+
+		// 1. work out which days to ask for
+		List<LocalDate> days = new ArrayList<>();
+		for(LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+			if(skipWeekends && (day.getDayOfWeek() == DayOfWeek.SATURDAY || day.getDayOfWeek() == DayOfWeek.SUNDAY)) {
+				continue;
+			}
+			days.add(day);
+		}
+
+		// 2. hand every day to the pool
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Map<LocalDate, Future<DayResult>> futures = new TreeMap<>();
+		try {
+			for(final LocalDate day : days) {
+				futures.put(day, pool.submit(() -> fetchDay(day)));
+			}
+
+			// 3. collect the results in date order
+			BackfillReport report = new BackfillReport();
+			for(Map.Entry<LocalDate, Future<DayResult>> entry : futures.entrySet()) {
+				DayResult result;
+				try {
+					result = entry.getValue().get();
+				}
+				catch(ExecutionException e) {
+					// fetchDay() catches everything it expects, so this is a bug or a runtime error while parsing
+					result = new DayResult(null, e.getCause(), 1);
+				}
+				report.add(entry.getKey(), result);
+			}
+			report.elapsedMillis = (System.nanoTime() - start) / 1000000;
+			return report;
+		}
+		finally {
+			pool.shutdownNow();
+		}
+
+	}
+
+
+	// download and parse one day, retrying I/O errors
+	// a missing archive (FileNotFoundException, i.e. a 404 or no such file in the mirror) is a holiday, not an error.
+	// the cache reports its own missing files as plain IOExceptions, so those are retried instead
+	private DayResult fetchDay(LocalDate day) throws InterruptedException {
+
+		String url = archiveUrl(baseUrl, day);
+		Semaphore permits = permitsFor(url);
+
+		IOException lastError = null;
+		for(int attempt = 1; attempt <= maxAttempts; attempt++) {
+
+			try {
+				return new DayResult(download(url, permits), null, attempt);
+			}
+			catch(FileNotFoundException e) {
+				return new DayResult(null, null, attempt);
+			}
+			catch(IOException e) {
+				lastError = e;
+			}
+
+			// wait a bit longer each time before trying again, without holding a permit
+			if(attempt < maxAttempts) {
+				Thread.sleep(backoffMillis(attempt));
+			}
+		}
+
+		return new DayResult(null, lastError, maxAttempts);
+
+	}
+
+	// the wait after the given failed attempt: initialBackoffMillis doubled once per earlier attempt, capped at
+	// MAX_BACKOFF_MILLIS. doubling step by step (instead of a shift by attempt - 1) can't overflow with many attempts
+	private long backoffMillis(int attempt) {
+		long backoff = initialBackoffMillis;
+		for(int i = 1; i < attempt && backoff < MAX_BACKOFF_MILLIS; i++) {
+			backoff *= 2;
+		}
+		return Math.max(Math.min(backoff, MAX_BACKOFF_MILLIS), initialBackoffMillis);
+	}
+
+	// a host permit is only held while bytes come over the network, so the parsing (and a fresh cached copy, which is
+	// read from disk) never waits behind the per-host limit
+	private OneDayMarketAction download(String url, Semaphore permits) throws IOException, InterruptedException {
+
+		// 1. get the archive
+		// with a cache it is read from its local copy (downloading or revalidating it first if it isn't fresh),
+		// and the copy is pinned while we read it, so another day's download can't evict it from under us.
+		// a copy that was fresh when asked but is gone by the time we open it is fetched without a permit, which is
+		// at worst one request over the limit
+		InputStream in;
+		if(downloadCache != null && downloadCache.isFresh(url)) {
+			in = downloadCache.open(url);
+		}
+		else {
+			permits.acquire();
+			try {
+				in = (downloadCache != null) ? downloadCache.open(url) : new ByteArrayInputStream(UnzipUtility.downloadBytes(url));
+			}
+			finally {
+				permits.release();
+			}
+		}
+
+		// 2. parse it
+		OneDayMarketAction odma;
+		try {
+			odma = UnzipUtility.parseZipStream(in, url, null, rowErrorPolicy);
+		}
+		finally {
+			in.close();
+		}
+
+		// a stream that was cut off (or a quarantine file we couldn't write) leaves the day partly loaded, so it is
+		// retried like any other I/O error instead of being reported as loaded (PipelineJob.parse() does the same)
+		ParseReport report = odma.getParseReport();
+		if(report.getError() != null) {
+			throw new IOException("Could not read " + report.getSourceName(), report.getError());
+		}
+		if(report.isBudgetExceeded()) {
+			throw new IOException("Too many malformed rows: " + report);
+		}
+		return odma;
+	}
+
+	private Semaphore permitsFor(String url) {
+		String host;
+		try {
+			host = new URL(url).getHost();
+		}
+		catch(IOException e) {
+			host = "";
+		}
+		return hostPermits.computeIfAbsent(host, h -> new Semaphore(maxPerHost));
+	}
+
+
+	// what happened to one day
+	private static class DayResult {
+
+		private final OneDayMarketAction odma;
+		private final Throwable error;
+		private final int attempts;
+
+		DayResult(OneDayMarketAction odma, Throwable error, int attempts) {
+			this.odma = odma;
+			this.error = error;
+			this.attempts = attempts;
+		}
+	}
+
+
+	// the completion report of one backfill run
+	public static class BackfillReport {
+
+		private final SortedMap<LocalDate, OneDayMarketAction> loadedDays = new TreeMap<>();
+		private final List<LocalDate> missingDays = new ArrayList<>();
+		private final SortedMap<LocalDate, Throwable> failedDays = new TreeMap<>();
+		private int totalAttempts;
+		private long elapsedMillis;
+
+		private void add(LocalDate day, DayResult result) {
+			totalAttempts += result.attempts;
+			if(result.odma != null) {
+				loadedDays.put(day, result.odma);
+			}
+			else if(result.error != null) {
+				failedDays.put(day, result.error);
+			}
+			else {
+				missingDays.add(day);
+			}
+		}
+
+		// the parsed days, in date order
+		public SortedMap<LocalDate, OneDayMarketAction> getLoadedDays() {
+			return Collections.unmodifiableSortedMap(loadedDays);
+		}
+
+		// days that had no archive (holidays, or not in the mirror)
+		public List<LocalDate> getMissingDays() {
+			return Collections.unmodifiableList(missingDays);
+		}
+
+		// days that still failed after every retry, with the last error
+		public SortedMap<LocalDate, Throwable> getFailedDays() {
+			return Collections.unmodifiableSortedMap(failedDays);
+		}
+
+		// the number of download attempts across all days, retries included
+		public int getTotalAttempts() {
+			return totalAttempts;
+		}
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		@Override
+		public String toString() {
+			return "Backfill: " + loadedDays.size() + " days loaded, " + missingDays.size() + " missing, "
+					+ failedDays.size() + " failed, " + totalAttempts + " attempts in " + elapsedMillis + " ms";
+		}
+	}
+
+}
@@ -0,0 +1,347 @@
+package org.kelly_ann;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+public class BhavcopyParser {
+	// this class is a faster alternative to reading a bhavcopy CSV with BufferedReader + String.split()
+	// it works directly on the bytes of the file:
+	// 1. the file is memory-mapped via FileChannel.map() so the OS pages it in for us (no copying into a char[])
+	// 2. we scan the bytes for ',' and '\n' in place instead of running the regex behind String.split()
+	// 3. prices are parsed straight from the bytes, so no intermediate Strings are created for them
+	// 4. the ticker symbol is only turned into a String for rows whose series column is "EQ"
+	//    and with a SymbolTable set, a ticker seen before is looked up from its bytes and no String is created at all
+	// by default only the EQ rows are handed over, setAllSeries(true) hands over every row (BE, BZ, SM...) instead
+
+	// the column positions used by OneTickerOneDay(String[] oneQuote)
+	// note: these must stay in sync with that constructor so both parsers give identical results
+	static final int COL_TICKER = 0;
+	static final int COL_SERIES = 1;
+	static final int COL_OPEN = 2;
+	static final int COL_CLOSE = 3;
+	static final int COL_HIGH = 4;
+	static final int COL_LOW = 5;
+	static final int COL_PREV_CLOSE = 6;
+
+	// the number of columns we need to have seen in a row before we can build a ticker from it
+	private static final int COLUMNS_NEEDED = COL_PREV_CLOSE + 1;
+
+	// powers of ten that are exactly representable as a double (10^0 ... 10^22)
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1.0;
+		for(int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+		}
+	}
+
+	// any mantissa below 2^53 converts to a double without rounding
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	// the parser hands every EQ row to one of these instead of creating an object per row itself
+	// this lets the caller decide where the values go (e.g. straight into the day's map)
+	public interface RowHandler {
+		void onRow(String ticker, String series, double open, double close, double high, double low, double prevClose);
+	}
+
+	// if one of these is given, a malformed row (too few columns, a quoted field, a price that isn't a number) is handed
+	// to it instead of the exception stopping the parse. the row is only turned into a String when it is bad, so clean
+	// rows cost nothing extra. return false to stop parsing (e.g. when too many rows have been bad).
+	public interface BadRowHandler {
+		boolean onBadRow(int lineNumber, String row, RuntimeException error);
+	}
+
+	// the start/end offsets of each column in the row currently being scanned
+	// these are reused for every row so scanning a row allocates nothing
+	private final int[] fieldStart = new int[COLUMNS_NEEDED];
+	private final int[] fieldEnd = new int[COLUMNS_NEEDED];
+
+	// the number of rows the last parse() looked at (not counting the header), and how many it skipped because they weren't EQ rows
+	private int rowsRead;
+	private int rowsSkipped;
+
+	// if set, tickers are looked up in (and added to) this table, see setSymbolTable()
+	private SymbolTable symbols;
+
+	// false = only EQ rows are handed over, see setAllSeries()
+	private boolean allSeries;
+
+	// scratch space used when a field's bytes have to be copied out of the buffer (ticker names and odd numbers)
+	private byte[] scratch = new byte[64];
+
+
+	// hand the row handler the table's own String for each ticker, so the same ticker on different days (and rows)
+	// is always the same String instance and a ticker we already know costs no allocation
+	public void setSymbolTable(SymbolTable symbols) {
+		this.symbols = symbols;
+	}
+
+	// hand over the rows of every series, not just EQ. nothing is skipped then, so getRowsSkipped() stays 0
+	// the series name is looked up in the symbol table (if one is set) the same way the ticker is
+	public void setAllSeries(boolean allSeries) {
+		this.allSeries = allSeries;
+	}
+
+
+	// memory-map the CSV file and pass every EQ row to the handler
+	// returns the number of EQ rows that were handed over
+	public int parseFile(String csvFile, RowHandler handler) throws IOException {
+		return parseFile(csvFile, handler, null);
+	}
+
+	// the same, with malformed rows going to badRowHandler instead of stopping the parse
+	public int parseFile(String csvFile, RowHandler handler, BadRowHandler badRowHandler) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(csvFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+
+			// a single mapping is limited to 2GB, a single day's bhavcopy is nowhere near that
+			if(size > Integer.MAX_VALUE) {
+				throw new IOException("File too large to memory-map: " + csvFile + " (" + size + " bytes)");
+			}
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			return parse(buffer, handler, true, badRowHandler);
+		}
+		finally {
+			// closing the file does not unmap the buffer, but we no longer hold on to it after this method
+			raf.close();
+		}
+	}
+
+
+	// scan the bytes between buffer.position() and buffer.limit() and pass every EQ row to the handler
+	// the first line is treated as the header and skipped, exactly like the BufferedReader version does
+	// returns the number of EQ rows that were handed over
+	public int parse(ByteBuffer buffer, RowHandler handler) {
+		return parse(buffer, handler, true);
+	}
+
+	// the same, but the caller says whether the bytes start with a header line
+	// e.g. rows appended to a file during the day come without one
+	public int parse(ByteBuffer buffer, RowHandler handler, boolean skipHeader) {
+		return parse(buffer, handler, skipHeader, null);
+	}
+
+	// the same, with malformed rows going to badRowHandler (if it isn't null) instead of stopping the parse
+	// line numbers count from 1 at the first line of the bytes, header included
+	public int parse(ByteBuffer buffer, RowHandler handler, boolean skipHeader, BadRowHandler badRowHandler) {
+
+		int pos = buffer.position();
+		int limit = buffer.limit();
+		int rowsHandled = 0;
+		int lineNumber = 0;
+		rowsRead = 0;
+		rowsSkipped = 0;
+
+		// 1. skip the header line
+		if(skipHeader) {
+			while(pos < limit && buffer.get(pos) != '\n') {
+				pos++;
+			}
+			pos++;
+			lineNumber++;
+		}
+
+		// 2. go through the remaining lines one at a time
+		while(pos < limit) {
+
+			// find the end of the line (a trailing '\r' from Windows line endings is dropped below)
+			int lineEnd = pos;
+			while(lineEnd < limit && buffer.get(lineEnd) != '\n') {
+				lineEnd++;
+			}
+			int contentEnd = lineEnd;
+			if(contentEnd > pos && buffer.get(contentEnd - 1) == '\r') {
+				contentEnd--;
+			}
+
+			// BufferedReader.readLine() hands back empty lines too, and split() then gives a 1-element array
+			// so an empty line is only harmless if it is the very last thing in the file
+			lineNumber++;
+			if(contentEnd > pos || lineEnd < limit) {
+				rowsRead++;
+				try {
+					if(handleLine(buffer, pos, contentEnd, handler)) {
+						rowsHandled++;
+					}
+				}
+				catch(RuntimeException e) {
+					// without a bad row handler the exception stops the parse, as it always has
+					if(badRowHandler == null) {
+						throw e;
+					}
+					if(!badRowHandler.onBadRow(lineNumber, asString(buffer, pos, contentEnd), e)) {
+						break;
+					}
+				}
+			}
+
+			pos = lineEnd + 1;
+		}
+
+		return rowsHandled;
+
+	}
+
+
+	// split one line into its columns and, if it is an EQ row (or any row with setAllSeries()), parse its prices and give them to the handler
+	// returns true if the row was handed over
+	private boolean handleLine(ByteBuffer buffer, int start, int end, RowHandler handler) {
+
+		// record where each of the columns we care about begins and ends
+		int column = 0;
+		fieldStart[0] = start;
+		for(int i = start; i < end && column < COLUMNS_NEEDED; i++) {
+			byte b = buffer.get(i);
+			if(b == ',') {
+				fieldEnd[column] = i;
+				column++;
+				if(column < COLUMNS_NEEDED) {
+					fieldStart[column] = i + 1;
+				}
+			}
+			// a quoted field may hold a comma of its own, which would shift every column after it
+			else if(b == '"') {
+				throw new IllegalArgumentException("Quoted field in column " + (column + 1));
+			}
+		}
+		if(column < COLUMNS_NEEDED) {
+			fieldEnd[column] = end;
+			column++;
+		}
+
+		// a short row can't be turned into a ticker, this matches the String[] version running off the end of the array
+		if(column < COLUMNS_NEEDED) {
+			throw new ArrayIndexOutOfBoundsException("Row has " + column + " columns, expected at least " + COLUMNS_NEEDED);
+		}
+
+		// skip rows that are not the ticker of an equity, without ever creating a String for them
+		String series = "EQ";
+		if(!isEquitySeries(buffer, fieldStart[COL_SERIES], fieldEnd[COL_SERIES])) {
+			if(!allSeries) {
+				rowsSkipped++;
+				return false;
+			}
+			series = symbol(buffer, fieldStart[COL_SERIES], fieldEnd[COL_SERIES]);
+		}
+
+		handler.onRow(symbol(buffer, fieldStart[COL_TICKER], fieldEnd[COL_TICKER]),
+				series,
+				parseDouble(buffer, fieldStart[COL_OPEN], fieldEnd[COL_OPEN]),
+				parseDouble(buffer, fieldStart[COL_CLOSE], fieldEnd[COL_CLOSE]),
+				parseDouble(buffer, fieldStart[COL_HIGH], fieldEnd[COL_HIGH]),
+				parseDouble(buffer, fieldStart[COL_LOW], fieldEnd[COL_LOW]),
+				parseDouble(buffer, fieldStart[COL_PREV_CLOSE], fieldEnd[COL_PREV_CLOSE]));
+		return true;
+
+	}
+
+
+	// the number of rows the last parse() looked at, not counting the header
+	public int getRowsRead() {
+		return rowsRead;
+	}
+
+	// the number of rows the last parse() skipped because they weren't EQ rows
+	public int getRowsSkipped() {
+		return rowsSkipped;
+	}
+
+
+	// the byte-level equivalent of series.compareTo("EQ") == 0
+	static boolean isEquitySeries(ByteBuffer buffer, int start, int end) {
+		return end - start == 2 && buffer.get(start) == 'E' && buffer.get(start + 1) == 'Q';
+	}
+
+
+	// parse a price directly from the bytes
+	// plain decimals like "1234.55" (which is what the exchange publishes) are handled here without creating a String:
+	// the digits are collected into a long and divided by a power of ten. both of those are exact doubles
+	// so the single division is correctly rounded and gives the very same double as Double.parseDouble().
+	// anything else (exponents, too many digits, whitespace, garbage) falls back to Double.parseDouble()
+	// so that the result, or the NumberFormatException, is identical to the String[] version.
+	double parseDouble(ByteBuffer buffer, int start, int end) {
+
+		int i = start;
+		boolean negative = false;
+		if(i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+			negative = buffer.get(i) == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = -1; // -1 means we haven't seen a '.' yet
+
+		for(; i < end; i++) {
+			byte b = buffer.get(i);
+			if(b >= '0' && b <= '9') {
+				mantissa = mantissa * 10 + (b - '0');
+				digits++;
+				if(fractionDigits >= 0) {
+					fractionDigits++;
+				}
+				// stop before the long could overflow, the slow path will deal with it
+				if(digits > 17) {
+					return parseDoubleSlow(buffer, start, end);
+				}
+			}
+			else if(b == '.' && fractionDigits < 0) {
+				fractionDigits = 0;
+			}
+			else {
+				return parseDoubleSlow(buffer, start, end);
+			}
+		}
+
+		if(digits == 0 || mantissa >= MAX_EXACT_MANTISSA) {
+			return parseDoubleSlow(buffer, start, end);
+		}
+
+		double value = (double) mantissa;
+		if(fractionDigits > 0) {
+			value = value / POWERS_OF_TEN[fractionDigits];
+		}
+		return negative ? -value : value;
+
+	}
+
+
+	// the String of a ticker (or series) name, from the symbol table if there is one
+	private String symbol(ByteBuffer buffer, int start, int end) {
+		if(symbols == null) {
+			return asString(buffer, start, end);
+		}
+		return symbols.getName(symbols.intern(buffer, start, end));
+	}
+
+
+	// the rare path: make a String out of the field and let the JDK parse it
+	private double parseDoubleSlow(ByteBuffer buffer, int start, int end) {
+		return Double.parseDouble(asString(buffer, start, end));
+	}
+
+
+	// copy a field's bytes out of the buffer and turn them into a String
+	// the exchange files are plain ASCII so no real decoding is needed
+	String asString(ByteBuffer buffer, int start, int end) {
+
+		int length = end - start;
+		if(scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+		for(int i = 0; i < length; i++) {
+			scratch[i] = buffer.get(start + i);
+		}
+		return new String(scratch, 0, length, StandardCharsets.US_ASCII);
+
+	}
+
+}
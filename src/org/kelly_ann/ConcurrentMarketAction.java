@@ -0,0 +1,78 @@
+package org.kelly_ann;
+
+import java.util.List;
+
+public class ConcurrentMarketAction {
+	// this class lets report threads read a trading day while an ingest thread is still loading or updating it.
+	//
+	// how it works ("copy-on-write" publishing):
+	// 1. the writer changes a private working MarketDay that no reader can see
+	// 2. publish() takes a frozen (unchangeable) copy of it, wraps it in a OneDayMarketAction and stores that in a
+	//    volatile field. that single write is what makes the new version visible, so readers see all of it or none of it.
+	// 3. readers just read the volatile field and use the snapshot they got for as long as they like.
+	//    they never take a lock and never block the writer (or each other), so reader throughput scales with cores.
+	// a snapshot never changes once published, so its getTopMovers() answers are cached once and shared by all readers.
+	//
+	// writers are serialized with "synchronized", which readers never touch.
+
+	// the version readers see
+	private volatile OneDayMarketAction published;
+
+	// the writer's working copy, only touched while holding this object's lock
+	private final MarketDay working;
+	private final String sourceName;
+	private int publishedCount;
+
+	// how many updates to collect before publishing automatically (0 = only when publish() is called)
+	private int publishEvery;
+	private int unpublishedUpdates;
+
+
+	// start from an already loaded day (which this class takes a copy of), and publish it straight away
+	public ConcurrentMarketAction(OneDayMarketAction initial, String sourceName) {
+		this.working = initial.getMarketDay().copy();
+		this.sourceName = sourceName;
+		publish();
+	}
+
+
+	// readers: the latest published version of the day. it is immutable, so it can be used without any locking
+	public OneDayMarketAction getSnapshot() {
+		return published;
+	}
+
+	// a convenience for readers, the same as getSnapshot().getTopMovers(k, direction)
+	public List<OneDayMarketAction.OneTickerOneDay> getTopMovers(int k, OneDayMarketAction.MoveDirection direction) {
+		return published.getTopMovers(k, direction);
+	}
+
+	// the number of versions published so far
+	public synchronized int getPublishedCount() {
+		return publishedCount;
+	}
+
+
+	// writers: collect this many updates before publishing a new version automatically
+	public synchronized void setPublishEvery(int updates) {
+		this.publishEvery = Math.max(updates, 0);
+	}
+
+	// writers: change one ticker's quote in the working copy. readers see it after the next publish
+	public synchronized void updateQuote(String ticker, String series, double open, double close, double high, double low, double prevClose) {
+		working.put(ticker, series, open, close, high, low, prevClose);
+		unpublishedUpdates++;
+		if(publishEvery > 0 && unpublishedUpdates >= publishEvery) {
+			publish();
+		}
+	}
+
+	// writers: make everything updated so far visible to readers, all at once
+	public synchronized void publish() {
+		OneDayMarketAction snapshot = new OneDayMarketAction(working.frozenCopy(), sourceName);
+		publishedCount++;
+		unpublishedUpdates = 0;
+		// this volatile write is the moment the new version becomes visible
+		published = snapshot;
+	}
+
+}
@@ -0,0 +1,537 @@
+package org.kelly_ann;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DownloadCache {
+	// this class keeps a local copy of every archive we download so re-runs don't fetch the same bytes again.
+	// historical bhavcopies never change, so once we have one it can be served straight from disk.
+	//
+	// how things are laid out in the cache directory:
+	//   objects/<sha-256 of the content>   the downloaded bytes, stored once per distinct content ("content-addressed")
+	//   urls/<sha-256 of the url>.properties   which object a url points to, plus its ETag / Last-Modified headers
+	//   urls/<sha-256 of the url>.part      a download that was cut off, it is resumed with an HTTP Range request
+	//
+	// entries older than maxAgeMillis are revalidated with If-None-Match / If-Modified-Since instead of re-downloaded,
+	// and when the objects take up more than maxBytes the least recently used ones are deleted.
+	// an object that is being handed out or read (see open() and fetchTo()) is pinned, and eviction never deletes it.
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// HttpURLConnection has no constant for it
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	// the keys we store in a url's .properties file
+	private static final String META_URL = "url";
+	private static final String META_OBJECT = "object";
+	private static final String META_ETAG = "etag";
+	private static final String META_LAST_MODIFIED = "lastModified";
+	private static final String META_FETCHED_AT = "fetchedAt";
+
+	private final File objectsDir;
+	private final File urlsDir;
+	private final long maxBytes;
+
+	// by default a cached entry is trusted forever, see setMaxAgeMillis()
+	private long maxAgeMillis = Long.MAX_VALUE;
+
+	// one lock object per url so two threads don't download the same archive into the same .part file
+	private final ConcurrentHashMap<String, Object> urlLocks = new ConcurrentHashMap<>();
+
+	// how many readers each object has right now (by object name), evictIfNeeded() skips these. guarded by "this"
+	private final Map<String, Integer> pins = new HashMap<>();
+
+	// the hit/miss statistics
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong revalidations = new AtomicLong();
+	private final AtomicLong notModified = new AtomicLong();
+	private final AtomicLong resumed = new AtomicLong();
+	private final AtomicLong bytesDownloaded = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+
+	public DownloadCache(String cacheDirectory, long maxBytes) {
+		this.objectsDir = new File(cacheDirectory, "objects");
+		this.urlsDir = new File(cacheDirectory, "urls");
+		this.maxBytes = maxBytes;
+		objectsDir.mkdirs();
+		urlsDir.mkdirs();
+	}
+
+	// entries fetched longer ago than this are revalidated with the server before being used
+	public void setMaxAgeMillis(long maxAgeMillis) {
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+
+	// return the path of a local copy of the url's content, downloading it only if we have to
+	// note: the object isn't pinned once this returns, so a later download may evict it. to read it use open(),
+	// or fetchTo() for a copy of your own
+	public String fetch(String urlString) throws IOException {
+		File object = fetchPinned(urlString);
+		unpin(object);
+		return object.getPath();
+	}
+
+	// open the url's content for reading, downloading it only if we have to
+	// the object can't be evicted until the stream is closed
+	public InputStream open(String urlString) throws IOException {
+		final File object = fetchPinned(urlString);
+		try {
+			return new FileInputStream(object) {
+				private boolean closed;
+
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					}
+					finally {
+						if(!closed) {
+							closed = true;
+							unpin(object);
+						}
+					}
+				}
+			};
+		}
+		catch(FileNotFoundException e) {
+			// deleted behind our back (not by eviction). not a FileNotFoundException, which means the url isn't there
+			unpin(object);
+			throw new IOException("Cached copy of " + urlString + " disappeared: " + object, e);
+		}
+	}
+
+	// true if the url has a cached copy that fetch(), open() or fetchTo() would hand out without asking the server,
+	// i.e. a hit. only a hint: the copy can still be evicted or go stale before it is asked for
+	public boolean isFresh(String urlString) throws IOException {
+		String key = sha256Hex(urlString.getBytes(StandardCharsets.UTF_8));
+		Properties meta = loadMeta(new File(urlsDir, key + ".properties"));
+		if(meta == null || meta.getProperty(META_OBJECT) == null) {
+			return false;
+		}
+		long fetchedAt = Long.parseLong(meta.getProperty(META_FETCHED_AT, "0"));
+		return System.currentTimeMillis() - fetchedAt <= maxAgeMillis
+				&& new File(objectsDir, meta.getProperty(META_OBJECT)).isFile();
+	}
+
+	// put the url's content at targetFile (a hard link to the cached object if the file system allows it, a copy if not),
+	// downloading it only if we have to. the target is the caller's to keep or delete, eviction never touches it
+	public String fetchTo(String urlString, String targetFile) throws IOException {
+		File object = fetchPinned(urlString);
+		try {
+			File target = new File(targetFile);
+			Files.deleteIfExists(target.toPath());
+			try {
+				Files.createLink(target.toPath(), object.toPath());
+			}
+			catch(IOException | UnsupportedOperationException e) {
+				Files.copy(object.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			return target.getPath();
+		}
+		finally {
+			unpin(object);
+		}
+	}
+
+
+	// the url's object, pinned: the caller must unpin() it when done
+	private File fetchPinned(String urlString) throws IOException {
+
+		String key = sha256Hex(urlString.getBytes(StandardCharsets.UTF_8));
+		Object lock = urlLocks.computeIfAbsent(key, k -> new Object());
+
+		synchronized(lock) {
+			File metaFile = new File(urlsDir, key + ".properties");
+			Properties meta = loadMeta(metaFile);
+			if(meta != null && meta.getProperty(META_OBJECT) == null) {
+				meta = null; // a broken entry (no object) is no use to us, it is downloaded again and written over
+			}
+
+			// pin before looking, so the object can't be evicted between the check and the return
+			File object = null;
+			if(meta != null) {
+				object = new File(objectsDir, meta.getProperty(META_OBJECT));
+				pin(object);
+				if(!object.isFile()) {
+					unpin(object);
+					object = null;
+				}
+			}
+
+			// 1. a hit: we have it and it is fresh enough
+			if(object != null) {
+				long fetchedAt = Long.parseLong(meta.getProperty(META_FETCHED_AT, "0"));
+				if(System.currentTimeMillis() - fetchedAt <= maxAgeMillis) {
+					hits.incrementAndGet();
+					touch(object);
+					return object;
+				}
+
+				// 2. we have it but it is old: ask the server whether it changed
+				// (download() pins whatever it returns, so our pin on the old object goes either way)
+				revalidations.incrementAndGet();
+				try {
+					return timedDownload(urlString, key, metaFile, meta, object);
+				}
+				finally {
+					unpin(object);
+				}
+			}
+
+			// 3. a miss
+			misses.incrementAndGet();
+			return timedDownload(urlString, key, metaFile, null, null);
+		}
+
+	}
+
+
+	// download() with its time recorded in the pipeline metrics (cache hits never get here, so they don't count)
+	private File timedDownload(String urlString, String key, File metaFile, Properties oldMeta, File oldObject) throws IOException {
+		long downloadStart = PipelineMetrics.start();
+		try {
+			return download(urlString, key, metaFile, oldMeta, oldObject);
+		}
+		finally {
+			PipelineMetrics.stop(PipelineMetrics.Timer.DOWNLOAD, downloadStart);
+		}
+	}
+
+	// download (or revalidate, or resume) one url into the cache and return its object, pinned
+	private File download(String urlString, String key, File metaFile, Properties oldMeta, File oldObject) throws IOException {
+
+		File part = new File(urlsDir, key + ".part");
+		File partMeta = new File(urlsDir, key + ".part.properties");
+		Properties partHeaders = loadMeta(partMeta);
+		long resumeFrom = (part.isFile() && partHeaders != null) ? part.length() : 0;
+
+		URLConnection c = openRequest(urlString, oldMeta, resumeFrom, partHeaders);
+		HttpURLConnection http = (c instanceof HttpURLConnection) ? (HttpURLConnection) c : null;
+
+		if(http != null && oldMeta == null && resumeFrom > 0 && http.getResponseCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+			// the .part already holds the whole body (we were cut off after the last byte) or the remote file got
+			// shorter: either way it is no use, so throw it away and ask for the whole file once more
+			http.disconnect();
+			part.delete();
+			partMeta.delete();
+			resumeFrom = 0;
+			c = openRequest(urlString, null, 0, null);
+			http = (c instanceof HttpURLConnection) ? (HttpURLConnection) c : null;
+		}
+
+		// note: a url that isn't there throws a FileNotFoundException here, and nothing is cached for it
+		InputStream in = c.getInputStream();
+
+		try {
+			int status = (http != null) ? http.getResponseCode() : HttpURLConnection.HTTP_OK;
+
+			if(status == HttpURLConnection.HTTP_NOT_MODIFIED && oldObject != null) {
+				notModified.incrementAndGet();
+				oldMeta.setProperty(META_FETCHED_AT, String.valueOf(System.currentTimeMillis()));
+				storeMeta(metaFile, oldMeta);
+				touch(oldObject);
+				pin(oldObject);
+				return oldObject;
+			}
+
+			boolean append = (status == HttpURLConnection.HTTP_PARTIAL && resumeFrom > 0);
+			if(append) {
+				resumed.incrementAndGet();
+			}
+			else {
+				// starting from scratch: remember this response's validators in case we get cut off and need to resume
+				Properties headers = new Properties();
+				putIfPresent(headers, META_ETAG, c.getHeaderField("ETag"));
+				putIfPresent(headers, META_LAST_MODIFIED, c.getHeaderField("Last-Modified"));
+				storeMeta(partMeta, headers);
+			}
+
+			// 1. stream the body into the .part file through the NIO channels
+			FileOutputStream fos = new FileOutputStream(part, append);
+			try {
+				ReadableByteChannel source = Channels.newChannel(in);
+				FileChannel target = fos.getChannel();
+				long position = append ? resumeFrom : 0;
+				long transferred;
+				while((transferred = target.transferFrom(source, position, BUFFER_SIZE)) > 0) {
+					position += transferred;
+					bytesDownloaded.addAndGet(transferred);
+					PipelineMetrics.add(PipelineMetrics.Counter.BYTES_DOWNLOADED, transferred);
+				}
+			}
+			finally {
+				fos.close();
+			}
+
+			PipelineMetrics.increment(PipelineMetrics.Counter.FILES_DOWNLOADED);
+
+			// 2. the download is complete: file it under its content hash and point the url at it
+			// it is pinned first, so the eviction below (or another thread's) can't take it, even if it alone is over maxBytes
+			String objectName = sha256Hex(part);
+			File object = new File(objectsDir, objectName);
+			pin(object);
+			boolean stored = false;
+			try {
+				if(object.exists()) {
+					part.delete(); // we already have these exact bytes under another url
+				}
+				else if(!part.renameTo(object)) {
+					throw new IOException("Could not move " + part + " to " + object);
+				}
+				touch(object);
+
+				Properties meta = new Properties();
+				meta.setProperty(META_URL, urlString);
+				meta.setProperty(META_OBJECT, objectName);
+				meta.setProperty(META_FETCHED_AT, String.valueOf(System.currentTimeMillis()));
+				putIfPresent(meta, META_ETAG, c.getHeaderField("ETag"));
+				putIfPresent(meta, META_LAST_MODIFIED, c.getHeaderField("Last-Modified"));
+				storeMeta(metaFile, meta);
+				partMeta.delete();
+				stored = true;
+			}
+			finally {
+				if(!stored) {
+					unpin(object);
+				}
+			}
+
+			evictIfNeeded();
+			return object;
+		}
+		catch(FileNotFoundException e) {
+			// only the url not being there may look like that (see above), not a file of our own going missing
+			throw new IOException("Cache file missing while storing " + urlString, e);
+		}
+		finally {
+			in.close();
+		}
+
+	}
+
+
+	// delete the least recently used objects until the cache fits in maxBytes again
+	// the objects' last-modified times are used as their last-access times (see touch())
+	// pinned objects are never deleted, so with enough of them in use the cache can stay over maxBytes for a while
+	// a connection to the url with the request headers set: conditional if we have an old copy, a Range request if we
+	// are resuming a .part file
+	private static URLConnection openRequest(String urlString, Properties oldMeta, long resumeFrom, Properties partHeaders) throws IOException {
+		URLConnection c = UnzipUtility.openConnection(urlString);
+		if(c instanceof HttpURLConnection) {
+			HttpURLConnection http = (HttpURLConnection) c;
+			if(oldMeta != null) {
+				// conditional request: the server answers 304 if our copy is still current
+				setIfPresent(http, "If-None-Match", oldMeta.getProperty(META_ETAG));
+				setIfPresent(http, "If-Modified-Since", oldMeta.getProperty(META_LAST_MODIFIED));
+			}
+			else if(resumeFrom > 0) {
+				// resume the cut-off download, but only if the remote file is still the one we started on
+				http.setRequestProperty("Range", "bytes=" + resumeFrom + "-");
+				String validator = partHeaders.getProperty(META_ETAG, partHeaders.getProperty(META_LAST_MODIFIED));
+				setIfPresent(http, "If-Range", validator);
+			}
+		}
+		return c;
+	}
+
+	private synchronized void evictIfNeeded() {
+
+		File[] objects = objectsDir.listFiles();
+		if(objects == null) {
+			return;
+		}
+
+		long total = 0;
+		for(File object : objects) {
+			total += object.length();
+		}
+		if(total <= maxBytes) {
+			return;
+		}
+
+		List<File> oldestFirst = new ArrayList<>(Arrays.asList(objects));
+		oldestFirst.sort(Comparator.comparingLong(File::lastModified));
+		for(File object : oldestFirst) {
+			if(total <= maxBytes) {
+				break;
+			}
+			if(pins.containsKey(object.getName())) {
+				continue;
+			}
+			long length = object.length();
+			if(object.delete()) {
+				total -= length;
+				evictions.incrementAndGet();
+			}
+		}
+		// note: the urls that pointed at an evicted object simply become misses the next time they are fetched
+
+	}
+
+
+	private synchronized void pin(File object) {
+		Integer count = pins.get(object.getName());
+		pins.put(object.getName(), (count == null) ? 1 : count + 1);
+	}
+
+	private synchronized void unpin(File object) {
+		Integer count = pins.get(object.getName());
+		if(count == null || count == 1) {
+			pins.remove(object.getName());
+		}
+		else {
+			pins.put(object.getName(), count - 1);
+		}
+	}
+
+	private static void touch(File object) {
+		object.setLastModified(System.currentTimeMillis());
+	}
+
+	private static void setIfPresent(HttpURLConnection http, String header, String value) {
+		if(value != null) {
+			http.setRequestProperty(header, value);
+		}
+	}
+
+	private static void putIfPresent(Properties properties, String key, String value) {
+		if(value != null) {
+			properties.setProperty(key, value);
+		}
+	}
+
+	private static Properties loadMeta(File metaFile) throws IOException {
+		if(!metaFile.isFile()) {
+			return null;
+		}
+		Properties meta = new Properties();
+		InputStream in = new FileInputStream(metaFile);
+		try {
+			meta.load(in);
+		}
+		finally {
+			in.close();
+		}
+		return meta;
+	}
+
+	private static void storeMeta(File metaFile, Properties meta) throws IOException {
+		OutputStream out = new FileOutputStream(metaFile);
+		try {
+			meta.store(out, null);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+
+	private static String sha256Hex(byte[] bytes) {
+		MessageDigest digest = newSha256();
+		return toHex(digest.digest(bytes));
+	}
+
+	private static String sha256Hex(File file) throws IOException {
+		MessageDigest digest = newSha256();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			while(channel.read(buffer) != -1) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	private static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e) {
+			// every JVM is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for(int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+			hex[2 * i + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+		}
+		return new String(hex);
+	}
+
+
+	// statistics
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getRevalidations() {
+		return revalidations.get();
+	}
+
+	public long getNotModified() {
+		return notModified.get();
+	}
+
+	public long getResumed() {
+		return resumed.get();
+	}
+
+	public long getBytesDownloaded() {
+		return bytesDownloaded.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "DownloadCache: " + getHits() + " hits, " + getMisses() + " misses, " + getRevalidations() + " revalidations ("
+				+ getNotModified() + " not modified), " + getResumed() + " resumed, " + getBytesDownloaded() + " bytes downloaded, "
+				+ getEvictions() + " evicted";
+	}
+
+}
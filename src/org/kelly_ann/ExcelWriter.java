@@ -4,15 +4,25 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.time.LocalDate;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.poi.hssf.usermodel.HSSFSheet;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 
 public class ExcelWriter {
 	
@@ -22,6 +32,9 @@ public class ExcelWriter {
 	
 	private OneDayMarketAction odma;
 	
+	// the most rows an .xlsx sheet can have, header included
+	private static final int MAX_XLSX_ROWS = 1048576;
+	
 	// this constructor will take in an obj of the day's market action so that it can use it's info
 	public ExcelWriter(OneDayMarketAction odma) {
 		this.odma = odma;
@@ -30,12 +43,14 @@ public class ExcelWriter {
 	public void createFile(String excelFileName){
 		
 		// 1. get the list of tickers that moved the most
-		List<OneDayMarketAction.OneTickerOneDay> otod = odma.getSortedMovers();
+		// only the 5 biggest losers are written (the top of the old ascending getSortedMovers() list), so don't sort everything
+		List<OneDayMarketAction.OneTickerOneDay> otod = odma.getTopMovers(5, OneDayMarketAction.MoveDirection.LOSERS);
 		
 		// 2. create a data structure with the info that we wish to write to excel
 		
 		// this is a bit complicated
 		// 2.a create an excel workbook data structure in Poi
+		long exportStart = PipelineMetrics.start();
 		HSSFWorkbook workbook = new HSSFWorkbook();
 		
 		// 2.b create an excel worksheet in this workbook
@@ -52,7 +67,7 @@ public class ExcelWriter {
 		dataInRows.put("1", new Object[] {"Ticker", "Close", "Prev Close", "%Change"});
 		
 		
-		for(int i = 2; i < 7; i++) {
+		for(int i = 2; i < 2 + otod.size(); i++) {
 			// write the detail rows
 			dataInRows.put(String.valueOf(i), new Object[] {otod.get(i-2).getTicker(), 
 																otod.get(i-2).getClose(),
@@ -63,8 +78,8 @@ public class ExcelWriter {
 		// 2.d write the values to the cells of the excel worksheet via Poi
 		// also a bit complicated
 		
-		// 2.d i. get the rows 1-by-1
-		for(int rowNum = 0; rowNum < 4; rowNum++){
+		// 2.d i. get the rows 1-by-1 (the header plus one per mover)
+		for(int rowNum = 0; rowNum < dataInRows.size(); rowNum++){
 			String key = (rowNum + 1) + ""; // trick to convert the row number from an int to a String
 			
 			// 2.d ii. for each row create a Poi obj
@@ -94,28 +109,324 @@ public class ExcelWriter {
 				}
 			}
 			
-			// 3. use POI to actually write this data to Excel
-			// this is relatively straightforward boilerplate file-handling stuff
+		}
+		
+		// 3. use POI to actually write this data to Excel
+		// this is relatively straightforward boilerplate file-handling stuff
+		// note: this is done once, after all the rows are in the workbook (it used to rewrite the file after every row)
+		try {
+			// create an output stream to to the file name passed in by the caller
+			FileOutputStream fos = new FileOutputStream(new File(excelFileName));
+			//write to the workbook from the program
+			workbook.write(fos);
+			// close output streams
+			workbook.close();
+			fos.close();
+		}
+		catch (FileNotFoundException e){
+			e.printStackTrace();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		PipelineMetrics.stop(PipelineMetrics.Timer.EXPORT, exportStart);
+		PipelineMetrics.add(PipelineMetrics.Counter.ROWS_EXPORTED, otod.size());
+		
+		// print confirmation
+		System.out.println("Excel written successfully");
+				
+		
+	}
+	
+	
+	// this writes every ticker of the day (not just the top 5) to an .xlsx file using POI's streaming SXSSFWorkbook
+	// unlike HSSFWorkbook (.xls, at most 65,536 rows, all of them in memory) the streaming workbook only keeps the last
+	// "rowWindow" rows in memory and flushes older ones to a temp file, so the heap stays flat however many rows we write.
+	public void createStreamingFile(String xlsxFileName, int rowWindow) throws IOException {
+		
+		SortedMap<String, OneDayMarketAction> oneDay = new TreeMap<>();
+		oneDay.put("Summary", odma);
+		createStreamingFile(oneDay, xlsxFileName, rowWindow);
+		
+	}
+	
+	// the multi-day version: one sheet per trading day, named by the map's keys (e.g. "2015-07-17"), in key order
+	// note: sheet names can't be longer than 31 characters or contain any of : \ / ? * [ ]
+	public static void createStreamingFile(SortedMap<String, OneDayMarketAction> days, String xlsxFileName, int rowWindow) throws IOException {
+		
+		long exportStart = PipelineMetrics.start();
+		SXSSFWorkbook workbook = new SXSSFWorkbook(rowWindow);
+		try {
+			// 1. fill in one sheet per day, older rows get flushed to disk as we go
+			for(Map.Entry<String, OneDayMarketAction> day : days.entrySet()) {
+				List<OneDayMarketAction.OneTickerOneDay> movers = day.getValue().getSortedMovers();
+				writeMoversSheet(workbook.createSheet(day.getKey()), movers);
+				PipelineMetrics.add(PipelineMetrics.Counter.ROWS_EXPORTED, movers.size());
+			}
+			
+			// 2. write the workbook out, exactly once
+			FileOutputStream fos = new FileOutputStream(new File(xlsxFileName));
 			try {
-				// create an output stream to to the file name passed in by the caller
-				FileOutputStream fos = new FileOutputStream(new File(excelFileName));
-				//write to the workbook from the program
 				workbook.write(fos);
-				// close output streams
-				workbook.close();
+			}
+			finally {
 				fos.close();
 			}
-			catch (FileNotFoundException e){
-				e.printStackTrace();
+		}
+		finally {
+			// the streaming workbook keeps its flushed rows in temp files, this deletes them
+			workbook.dispose();
+			workbook.close();
+			PipelineMetrics.stop(PipelineMetrics.Timer.EXPORT, exportStart);
+		}
+		
+	}
+	
+	// the batch version of createFile(): one .xls report per day (the k biggest movers in one direction),
+	// written to <outputDirectory>/<date>.xls on a pool of "threads" worker threads so a month of days is done at once.
+	// the days are keyed by date like BackfillReport.getLoadedDays(), so a backfill's days can be passed straight in.
+	// every report starts from the same preloaded template and makes its styles once (see ReportTemplate).
+	// a day that fails doesn't stop the others, the returned map holds the error of each day that failed (empty if none)
+	public static SortedMap<LocalDate, Throwable> createReports(SortedMap<LocalDate, OneDayMarketAction> days, final String outputDirectory,
+			final ReportTemplate template, final int k, final OneDayMarketAction.MoveDirection direction, int threads) throws InterruptedException {
+		
+		new File(outputDirectory).mkdirs();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			// 1. one task per day
+			Map<LocalDate, Future<Void>> futures = new TreeMap<>();
+			for(final Map.Entry<LocalDate, OneDayMarketAction> day : days.entrySet()) {
+				futures.put(day.getKey(), pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						createReport(day.getValue(), template, k, direction, outputDirectory + File.separator + day.getKey() + ".xls");
+						return null;
+					}
+				}));
+			}
+			
+			// 2. wait for all of them and collect the failures
+			SortedMap<LocalDate, Throwable> failures = new TreeMap<>();
+			for(Map.Entry<LocalDate, Future<Void>> future : futures.entrySet()) {
+				try {
+					future.getValue().get();
+				}
+				catch(ExecutionException e) {
+					failures.put(future.getKey(), e.getCause());
+				}
+			}
+			return failures;
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		
+	}
+	
+	// write one day's report: the k biggest movers in one direction, on the template's first sheet
+	// every row of the template below the last mover is removed, so its sample rows never show up as data
+	// each value goes into its cell with its own type and its column's shared style, so nothing is boxed into an Object[]
+	// the file is written next to its final name and renamed once complete
+	public static void createReport(OneDayMarketAction odma, ReportTemplate template, int k, OneDayMarketAction.MoveDirection direction,
+			String excelFileName) throws IOException {
+		
+		long exportStart = PipelineMetrics.start();
+		HSSFWorkbook workbook = template.newWorkbook();
+		try {
+			// 1. the styles, once for the whole workbook
+			ReportTemplate.Styles styles = new ReportTemplate.Styles(workbook);
+			Sheet worksheet = workbook.getSheetAt(0);
+			
+			// 2. one row per mover under the header
+			List<OneDayMarketAction.OneTickerOneDay> movers = odma.getTopMovers(k, direction);
+			int rowNum = 1;
+			for(OneDayMarketAction.OneTickerOneDay otod : movers) {
+				Row row = worksheet.getRow(rowNum);
+				if(row == null) {
+					row = worksheet.createRow(rowNum);
+				}
+				rowNum++;
+				setStyledCell(row, ReportTemplate.COL_TICKER, styles).setCellValue(otod.getTicker());
+				setStyledCell(row, ReportTemplate.COL_CLOSE, styles).setCellValue(otod.getClose());
+				setStyledCell(row, ReportTemplate.COL_PREV_CLOSE, styles).setCellValue(otod.getPrevClose());
+				setStyledCell(row, ReportTemplate.COL_CHANGE, styles).setCellValue(otod.getPercentageChange());
 			}
-			catch (IOException e) {
-				e.printStackTrace();
+			PipelineMetrics.add(PipelineMetrics.Counter.ROWS_EXPORTED, movers.size());
+			
+			// 3. clear out what the template had below that (its style row too when there are fewer movers than k)
+			// the styles were taken from the workbook already, so removing the rows doesn't lose them
+			for(int r = worksheet.getLastRowNum(); r >= rowNum; r--) {
+				Row stale = worksheet.getRow(r);
+				if(stale != null) {
+					worksheet.removeRow(stale);
+				}
 			}
 			
+			// 4. write it out
+			File target = new File(excelFileName);
+			File temp = new File(target.getPath() + ".tmp");
+			FileOutputStream fos = new FileOutputStream(temp);
+			try {
+				workbook.write(fos);
+			}
+			finally {
+				fos.close();
+			}
+			if(!temp.renameTo(target)) {
+				target.delete();
+				if(!temp.renameTo(target)) {
+					throw new IOException("Could not replace " + excelFileName);
+				}
+			}
+		}
+		finally {
+			workbook.close();
+			PipelineMetrics.stop(PipelineMetrics.Timer.EXPORT, exportStart);
+		}
+		
+	}
+	
+	// the cell of one column in a report row, with the column's style on it
+	private static Cell setStyledCell(Row row, int column, ReportTemplate.Styles styles) {
+		Cell cell = row.getCell(column);
+		if(cell == null) {
+			cell = row.createCell(column);
+		}
+		if(styles.columns[column] != null) {
+			cell.setCellStyle(styles.columns[column]);
+		}
+		return cell;
+	}
+	
+	// this writes the current value of every ticker's rolling indicators (see IndicatorEngine) to an .xls file, one row per ticker
+	// indicators that don't have enough bars yet are NaN, and those cells are left empty
+	public static void createIndicatorFile(IndicatorEngine engine, String excelFileName) throws IOException {
+
+		long exportStart = PipelineMetrics.start();
+		HSSFWorkbook workbook = new HSSFWorkbook();
+		try {
+			// 1. the header, which says how many bars the window is
+			HSSFSheet worksheet = workbook.createSheet("Indicators");
+			int window = engine.getWindow();
+			Row header = worksheet.createRow(0);
+			header.createCell(0).setCellValue("Ticker");
+			header.createCell(1).setCellValue("Bars");
+			header.createCell(2).setCellValue("SMA(" + window + ")");
+			header.createCell(3).setCellValue("Volatility(" + window + ")");
+			header.createCell(4).setCellValue("VWAP(" + window + ")");
+			header.createCell(5).setCellValue("RSI(" + window + ")");
+
+			// 2. one row per ticker, in ticker order
+			int rowNum = 1;
+			for(int slot : engine.getSlotsByTicker()) {
+				Row row = worksheet.createRow(rowNum++);
+				row.createCell(0).setCellValue(engine.getTicker(slot));
+				row.createCell(1).setCellValue(engine.getBars(slot));
+				setNumberCell(row, 2, engine.getMovingAverage(slot));
+				setNumberCell(row, 3, engine.getVolatility(slot));
+				setNumberCell(row, 4, engine.getVwap(slot));
+				setNumberCell(row, 5, engine.getRsi(slot));
+			}
+			PipelineMetrics.add(PipelineMetrics.Counter.ROWS_EXPORTED, rowNum - 1);
+
+			// 3. write the workbook out
+			FileOutputStream fos = new FileOutputStream(new File(excelFileName));
+			try {
+				workbook.write(fos);
+			}
+			finally {
+				fos.close();
+			}
+		}
+		finally {
+			workbook.close();
+			PipelineMetrics.stop(PipelineMetrics.Timer.EXPORT, exportStart);
+		}
+
+	}
+
+	// this streams a ranking of every (ticker, day) move (see ExternalMoversSort) into an .xlsx file, row by row as the
+	// merge hands them over, with the same streaming workbook as createStreamingFile() so neither side holds the ranking.
+	// a sheet holds at most MAX_XLSX_ROWS rows, a longer ranking carries on in "Ranking 2", "Ranking 3"...
+	public static long createRankingFile(ExternalMoversSort ranking, String xlsxFileName, int rowWindow) throws IOException {
+
+		long exportStart = PipelineMetrics.start();
+		final SXSSFWorkbook workbook = new SXSSFWorkbook(rowWindow);
+		long rows;
+		try {
+			// 1. fill in the sheets as the ranking streams past, older rows get flushed to disk as we go
+			rows = ranking.sort(new ExternalMoversSort.MoveHandler() {
+
+				private Sheet worksheet;
+				private int rowNum;
+
+				@Override
+				public void onMove(long rank, String ticker, LocalDate day, double close, double prevClose, double change) {
+					if(worksheet == null || rowNum == MAX_XLSX_ROWS) {
+						worksheet = workbook.createSheet("Ranking" + (workbook.getNumberOfSheets() == 0 ? "" : " " + (workbook.getNumberOfSheets() + 1)));
+						Row header = worksheet.createRow(0);
+						header.createCell(0).setCellValue("Rank");
+						header.createCell(1).setCellValue("Ticker");
+						header.createCell(2).setCellValue("Day");
+						header.createCell(3).setCellValue("Close");
+						header.createCell(4).setCellValue("Prev Close");
+						header.createCell(5).setCellValue("%Change");
+						rowNum = 1;
+					}
+					Row row = worksheet.createRow(rowNum++);
+					row.createCell(0).setCellValue(rank);
+					row.createCell(1).setCellValue(ticker);
+					row.createCell(2).setCellValue(day.toString());
+					row.createCell(3).setCellValue(close);
+					row.createCell(4).setCellValue(prevClose);
+					row.createCell(5).setCellValue(change);
+				}
+			});
+			PipelineMetrics.add(PipelineMetrics.Counter.ROWS_EXPORTED, rows);
+
+			// 2. write the workbook out, exactly once
+			FileOutputStream fos = new FileOutputStream(new File(xlsxFileName));
+			try {
+				workbook.write(fos);
+			}
+			finally {
+				fos.close();
+			}
+		}
+		finally {
+			workbook.dispose();
+			workbook.close();
+			PipelineMetrics.stop(PipelineMetrics.Timer.EXPORT, exportStart);
+		}
+		return rows;
+
+	}
+
+	// Excel has no NaN, so a missing value becomes an empty cell
+	private static void setNumberCell(Row row, int cellNum, double value) {
+		if(!Double.isNaN(value)) {
+			row.createCell(cellNum).setCellValue(value);
+		}
+	}
+
+	// write a header row and one row per mover straight into the sheet's cells
+	// the values are set with their own types, so nothing goes through an Object[] on the way
+	private static void writeMoversSheet(Sheet worksheet, List<OneDayMarketAction.OneTickerOneDay> movers) {
+		
+		Row header = worksheet.createRow(0);
+		header.createCell(0).setCellValue("Ticker");
+		header.createCell(1).setCellValue("Close");
+		header.createCell(2).setCellValue("Prev Close");
+		header.createCell(3).setCellValue("%Change");
+		
+		int rowNum = 1;
+		for(OneDayMarketAction.OneTickerOneDay otod : movers) {
+			Row row = worksheet.createRow(rowNum++);
+			row.createCell(0).setCellValue(otod.getTicker());
+			row.createCell(1).setCellValue(otod.getClose());
+			row.createCell(2).setCellValue(otod.getPrevClose());
+			row.createCell(3).setCellValue(otod.getPercentageChange());
 		}
-		// print confirmation
-		System.out.println("Excel written successfully");
-				
 		
 	}
 	
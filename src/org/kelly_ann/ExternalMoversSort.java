@@ -0,0 +1,484 @@
+package org.kelly_ann;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+
+public class ExternalMoversSort {
+	// this class ranks every (ticker, day) move over any number of days - a decade of bhavcopies is tens of millions of
+	// rows - without ever holding them all in the heap. it is an external merge sort:
+	// 1. add() copies each ticker's move into fixed-size primitive buffers. when those hold as many records as the
+	//    memory cap allows, they are sorted and written out as one sorted "run" file of 32-byte binary records
+	// 2. sort() merges the runs with a k-way merge: one small read buffer per run and a heap that always holds the
+	//    current record of each run, so the next record in rank order is always at the top of the heap.
+	//    if there are more runs than the memory cap has read buffers for, groups of them are merged into bigger runs
+	//    first, so however much data there is, the merge never needs more memory than the cap
+	// 3. every record is handed to a MoveHandler in rank order as it comes off the heap, so the result can be streamed
+	//    to a file (writeCsv(), MoversExporter) or to a spreadsheet (ExcelWriter.createRankingFile()) without being kept anywhere
+	//
+	// the runs are read and written through FileChannels with ByteBuffers. they are kept until close(), so the ranking
+	// can be streamed more than once (call close() in a finally, nothing else deletes them). moves with no prevClose (NaN) are left out, like getTopMovers() does.
+	// ties are ranked by day and then by ticker symbol id, so the same input always gives the same ranking.
+	// all the days have to share one SymbolTable, the records hold ticker symbol ids and not names.
+	// only the rows of one series (EQ unless the constructor says otherwise) are ranked: a record has no room for the
+	// series, so a day loaded with all its series would otherwise rank the EQ and BE rows of a ticker as the same
+	// (ticker, day) twice, with nothing to tell them apart.
+
+	// change (8) + close (8) + prevClose (8) + day (4) + ticker symbol (4)
+	static final int RECORD_BYTES = 32;
+
+	// what one record costs while it is still in memory: the record plus the two ints per record the sort uses
+	private static final int IN_MEMORY_BYTES_PER_RECORD = RECORD_BYTES + 8;
+
+	// the smallest read buffer worth giving a run during the merge, this decides how many runs are merged at once
+	private static final int MIN_READ_BUFFER = 64 * 1024;
+
+	// the smallest memory cap that still leaves room for a few thousand records and two read buffers
+	private static final long MIN_MEMORY_BYTES = 4 * MIN_READ_BUFFER;
+
+	// the record buffers start this big and double as records come in, up to what the memory cap allows
+	private static final int INITIAL_RECORDS = 4096;
+
+	// the series ranked when none is given
+	public static final String DEFAULT_SERIES = "EQ";
+
+	// gets every record of the ranking, in rank order (rank 1 is the biggest move in the chosen direction)
+	public interface MoveHandler {
+		void onMove(long rank, String ticker, LocalDate day, double close, double prevClose, double change) throws IOException;
+	}
+
+	private final File tempDirectory;
+	private final long memoryBytes;
+	private final OneDayMarketAction.MoveDirection direction;
+	private final String series;
+	private SymbolTable symbols;
+
+	// the records not spilled yet, as primitive columns
+	// they are only allocated while records are being added, the merge gets the memory while it runs.
+	// they grow up to "capacity" records, so a small sort doesn't take the whole cap
+	private final int capacity;
+	private double[] changes;
+	private double[] closes;
+	private double[] prevCloses;
+	private int[] days;
+	private int[] tickers;
+	private int buffered;
+
+	// the sorted run files on disk
+	private final List<File> runs = new ArrayList<>();
+	private long size;
+
+
+	// tempDirectory is where the run files go (null for the system temp directory),
+	// memoryBytes is the most heap the sort may use for records and read buffers
+	public ExternalMoversSort(String tempDirectory, long memoryBytes, OneDayMarketAction.MoveDirection direction) {
+		this(tempDirectory, memoryBytes, direction, DEFAULT_SERIES);
+	}
+
+	// the same, ranking the rows of the given series
+	public ExternalMoversSort(String tempDirectory, long memoryBytes, OneDayMarketAction.MoveDirection direction, String series) {
+		if(memoryBytes < MIN_MEMORY_BYTES) {
+			throw new IllegalArgumentException("The memory cap must be at least " + MIN_MEMORY_BYTES + " bytes: " + memoryBytes);
+		}
+		this.tempDirectory = (tempDirectory == null) ? null : new File(tempDirectory);
+		this.memoryBytes = memoryBytes;
+		this.direction = direction;
+		this.series = series;
+		// the spill writes through one read-buffer-sized buffer, the rest of the cap holds records
+		this.capacity = (int) Math.min(Integer.MAX_VALUE - 8, (memoryBytes - MIN_READ_BUFFER) / IN_MEMORY_BYTES_PER_RECORD);
+	}
+
+
+	// add every loaded day, e.g. BackfillReport.getLoadedDays()
+	public void addAll(SortedMap<LocalDate, OneDayMarketAction> loadedDays) throws IOException {
+		for(SortedMap.Entry<LocalDate, OneDayMarketAction> day : loadedDays.entrySet()) {
+			add(day.getKey(), day.getValue());
+		}
+	}
+
+	public void add(LocalDate day, OneDayMarketAction odma) throws IOException {
+		add(day, odma.getMarketDay());
+	}
+
+	// add one day's moves, spilling a sorted run to disk whenever the in-memory records reach the cap
+	public void add(LocalDate day, MarketDay marketDay) throws IOException {
+
+		if(symbols == null) {
+			symbols = marketDay.getSymbolTable();
+		}
+		else if(symbols != marketDay.getSymbolTable()) {
+			throw new IllegalArgumentException("All days must share one SymbolTable");
+		}
+
+		if(changes == null) {
+			allocateBuffers(Math.min(capacity, INITIAL_RECORDS));
+		}
+
+		int epochDay = (int) day.toEpochDay();
+		int seriesSymbol = symbols.idOf(series);
+		if(seriesSymbol == SymbolTable.NO_SYMBOL) {
+			// no row has that series (rows without a series have NO_SYMBOL too, but aren't asked for)
+			return;
+		}
+		double[] close = marketDay.closeColumn();
+		double[] prevClose = marketDay.prevCloseColumn();
+		for(int id = 0; id < marketDay.size(); id++) {
+			if(marketDay.getSeriesSymbol(id) != seriesSymbol) {
+				continue;
+			}
+			double change = marketDay.getPercentageChange(id);
+			if(Double.isNaN(change)) {
+				continue;
+			}
+			if(buffered == changes.length) {
+				if(changes.length < capacity) {
+					growBuffers();
+				}
+				else {
+					spill();
+				}
+			}
+			changes[buffered] = change;
+			closes[buffered] = close[id];
+			prevCloses[buffered] = prevClose[id];
+			days[buffered] = epochDay;
+			tickers[buffered] = marketDay.getTickerSymbol(id);
+			buffered++;
+			size++;
+		}
+
+	}
+
+	// the number of records added
+	public long size() {
+		return size;
+	}
+
+	// the number of run files on disk right now
+	public int getRunCount() {
+		return runs.size();
+	}
+
+
+	// stream the whole ranking to the handler and return the number of records handed over
+	public long sort(MoveHandler handler) throws IOException {
+
+		// 1. whatever is still in memory becomes the last run, and the record buffers are let go
+		if(buffered > 0) {
+			spill();
+		}
+		releaseBuffers();
+
+		// 2. merge groups of runs into bigger ones until there are few enough to merge at once
+		long mergeStart = PipelineMetrics.start();
+		int maxFanIn = (int) Math.max(2, memoryBytes / MIN_READ_BUFFER - 1);
+		while(runs.size() > maxFanIn) {
+			List<File> group = new ArrayList<>(runs.subList(0, maxFanIn));
+			File merged = newRunFile();
+			boolean complete = false;
+			try {
+				RunWriter writer = new RunWriter(merged, MIN_READ_BUFFER);
+				try {
+					merge(group, new RecordSink() {
+						@Override
+						public void accept(RunReader run) throws IOException {
+							writer.write(run.change, run.close, run.prevClose, run.day, run.ticker);
+						}
+					});
+				}
+				finally {
+					writer.close();
+				}
+				complete = true;
+			}
+			finally {
+				// a merged run that isn't in the list yet wouldn't be deleted by close()
+				if(!complete) {
+					merged.delete();
+				}
+			}
+			for(File run : group) {
+				run.delete();
+			}
+			runs.subList(0, maxFanIn).clear();
+			runs.add(merged);
+		}
+
+		// 3. the final merge goes straight to the handler
+		final long[] rank = new long[1];
+		merge(runs, new RecordSink() {
+			@Override
+			public void accept(RunReader run) throws IOException {
+				handler.onMove(++rank[0], symbols.getName(run.ticker), LocalDate.ofEpochDay(run.day),
+						run.close, run.prevClose, run.change);
+			}
+		});
+		PipelineMetrics.stop(PipelineMetrics.Timer.SORT, mergeStart);
+		return rank[0];
+
+	}
+
+	// stream the ranking to a csv file (see MoversExporter.RANKING_COLUMNS for the columns)
+	// the file is written next to its final name and renamed once complete
+	public long writeCsv(String csvFile) throws IOException {
+		return MoversExporter.writeRanking(this, csvFile, MoversExporter.Format.CSV);
+	}
+
+	// delete the run files
+	public void close() {
+		for(File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+		releaseBuffers();
+	}
+
+	private void allocateBuffers(int records) {
+		changes = new double[records];
+		closes = new double[records];
+		prevCloses = new double[records];
+		days = new int[records];
+		tickers = new int[records];
+	}
+
+	// double the record buffers, up to the cap. while they are being copied the old and the new arrays are both
+	// in the heap, so when that would go over the cap the full buffers are spilled first and the bigger ones start empty
+	private void growBuffers() throws IOException {
+		int records = (int) Math.min(capacity, 2L * changes.length);
+		if(changes.length + records > capacity) {
+			spill();
+			releaseBuffers();
+			allocateBuffers(records);
+			return;
+		}
+		changes = Arrays.copyOf(changes, records);
+		closes = Arrays.copyOf(closes, records);
+		prevCloses = Arrays.copyOf(prevCloses, records);
+		days = Arrays.copyOf(days, records);
+		tickers = Arrays.copyOf(tickers, records);
+	}
+
+	private void releaseBuffers() {
+		changes = null;
+		closes = null;
+		prevCloses = null;
+		days = null;
+		tickers = null;
+		buffered = 0;
+	}
+
+
+	// sort the in-memory records and write them out as a new run
+	private void spill() throws IOException {
+
+		long sortStart = PipelineMetrics.start();
+		int[] order = sortedOrder();
+		PipelineMetrics.stop(PipelineMetrics.Timer.SORT, sortStart);
+
+		// the run is in the list before anything is written to it, so close() deletes it even if the write fails
+		File run = newRunFile();
+		runs.add(run);
+		RunWriter writer = new RunWriter(run, MIN_READ_BUFFER);
+		try {
+			for(int i : order) {
+				writer.write(changes[i], closes[i], prevCloses[i], days[i], tickers[i]);
+			}
+		}
+		finally {
+			writer.close();
+		}
+		buffered = 0;
+
+	}
+
+	// the positions of the buffered records in rank order, with a bottom-up merge sort on int positions
+	private int[] sortedOrder() {
+
+		int n = buffered;
+		int[] order = new int[n];
+		for(int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		int[] scratch = new int[n];
+		for(int width = 1; width < n; width *= 2) {
+			for(int left = 0; left < n - width; left += 2 * width) {
+				int middle = left + width;
+				int right = Math.min(left + 2 * width, n);
+				if(compareBuffered(order[middle - 1], order[middle]) <= 0) {
+					continue;
+				}
+				int i = left, j = middle, k = left;
+				while(i < middle && j < right) {
+					scratch[k++] = (compareBuffered(order[j], order[i]) < 0) ? order[j++] : order[i++];
+				}
+				while(i < middle) {
+					scratch[k++] = order[i++];
+				}
+				while(j < right) {
+					scratch[k++] = order[j++];
+				}
+				System.arraycopy(scratch, left, order, left, right - left);
+			}
+		}
+		return order;
+
+	}
+
+	private int compareBuffered(int a, int b) {
+		return compare(changes[a], days[a], tickers[a], changes[b], days[b], tickers[b]);
+	}
+
+	// rank order: the biggest move in our direction first, then the earlier day, then the lower ticker symbol id
+	private int compare(double change1, int day1, int ticker1, double change2, int day2, int ticker2) {
+		if(change1 != change2) {
+			boolean firstIsBigger = change1 > change2;
+			return (firstIsBigger == (direction == OneDayMarketAction.MoveDirection.GAINERS)) ? -1 : 1;
+		}
+		if(day1 != day2) {
+			return day1 < day2 ? -1 : 1;
+		}
+		return Integer.compare(ticker1, ticker2);
+	}
+
+
+	// k-way merge of the given runs: the heap holds one reader per run, ordered by its current record
+	private void merge(List<File> runFiles, RecordSink sink) throws IOException {
+
+		// the cap is shared by one read buffer per run, keeping back one buffer's worth for a run being written
+		long perRun = (memoryBytes - MIN_READ_BUFFER) / Math.max(1, runFiles.size());
+		int readBuffer = (int) Math.max(MIN_READ_BUFFER, Math.min(Integer.MAX_VALUE - 8, perRun) / RECORD_BYTES * RECORD_BYTES);
+		PriorityQueue<RunReader> heap = new PriorityQueue<>(Math.max(1, runFiles.size()), (a, b) ->
+				compare(a.change, a.day, a.ticker, b.change, b.day, b.ticker));
+		List<RunReader> readers = new ArrayList<>(runFiles.size());
+		try {
+			for(File runFile : runFiles) {
+				RunReader reader = new RunReader(runFile, readBuffer);
+				readers.add(reader);
+				if(reader.next()) {
+					heap.add(reader);
+				}
+			}
+			while(!heap.isEmpty()) {
+				RunReader top = heap.poll();
+				sink.accept(top);
+				if(top.next()) {
+					heap.add(top);
+				}
+			}
+		}
+		finally {
+			for(RunReader reader : readers) {
+				reader.close();
+			}
+		}
+
+	}
+
+	// no deleteOnExit(): its list only ever grows, even after close() has deleted the file. close() cleans up instead
+	private File newRunFile() throws IOException {
+		return File.createTempFile("movers-run-", ".bin", tempDirectory);
+	}
+
+	private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+
+	// where the merge puts each record as it comes off the heap
+	private interface RecordSink {
+		void accept(RunReader run) throws IOException;
+	}
+
+	// writes fixed-size records to a run file through one reused buffer
+	private static final class RunWriter {
+
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+
+		RunWriter(File file, int bufferBytes) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			buffer = ByteBuffer.allocate(bufferBytes / RECORD_BYTES * RECORD_BYTES);
+		}
+
+		void write(double change, double close, double prevClose, int day, int ticker) throws IOException {
+			if(buffer.remaining() < RECORD_BYTES) {
+				drain(channel, buffer);
+			}
+			buffer.putDouble(change).putDouble(close).putDouble(prevClose).putInt(day).putInt(ticker);
+		}
+
+		void close() throws IOException {
+			try {
+				drain(channel, buffer);
+			}
+			finally {
+				channel.close();
+			}
+		}
+	}
+
+	// reads a run file one record at a time, refilling its buffer from the channel as it goes
+	// the current record's fields are what the merge heap compares
+	private static final class RunReader {
+
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private boolean endOfFile;
+
+		double change;
+		double close;
+		double prevClose;
+		int day;
+		int ticker;
+
+		RunReader(File file, int bufferBytes) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			buffer = ByteBuffer.allocate(bufferBytes);
+			buffer.flip();
+		}
+
+		// move on to the next record, false once the run is used up
+		boolean next() throws IOException {
+			if(buffer.remaining() < RECORD_BYTES) {
+				if(endOfFile) {
+					return false;
+				}
+				// keep the part of a record that is left and fill the rest of the buffer
+				buffer.compact();
+				while(buffer.hasRemaining()) {
+					if(channel.read(buffer) < 0) {
+						endOfFile = true;
+						break;
+					}
+				}
+				buffer.flip();
+				if(buffer.remaining() < RECORD_BYTES) {
+					return false;
+				}
+			}
+			change = buffer.getDouble();
+			close = buffer.getDouble();
+			prevClose = buffer.getDouble();
+			day = buffer.getInt();
+			ticker = buffer.getInt();
+			return true;
+		}
+
+		void close() throws IOException {
+			channel.close();
+		}
+	}
+
+}
@@ -0,0 +1,322 @@
+package org.kelly_ann;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class IndicatorEngine {
+	// this class keeps rolling-window indicators up to date for many tickers at once, one bar (day, month...) at a time:
+	//   moving average   the average close over the last "window" bars
+	//   volatility       the (sample) standard deviation of the last "window" close-to-close returns
+	//   VWAP             sum(typical price * volume) / sum(volume) over the last "window" bars, typical = (high+low+close)/3
+	//   RSI              Wilder's relative strength index with a period of "window" bars
+	//
+	// how it stays O(1) per bar:
+	// 1. each ticker gets a slot, and each slot owns "window" places in shared ring-buffer arrays (slot * window ...)
+	// 2. a new bar overwrites the oldest one in the ring, and the running sums subtract what left and add what came in
+	// 3. RSI only needs its two smoothed averages, so it has no ring at all
+	// everything is stored in primitive arrays, so adding a bar for a ticker we already know allocates nothing.
+	//
+	// running sums slowly collect rounding error, so every time a slot's ring wraps round the sums are recomputed from
+	// the ring itself. that is "window" steps once every "window" bars, so still O(1) per bar on average.
+	//
+	// bars must be added oldest first. indicators are NaN until enough bars have been seen, and bars without a volume
+	// (e.g. bhavcopy days, which don't have one) are left out of the VWAP.
+
+	// the series whose rows onDay() turns into bars when none is given
+	public static final String DEFAULT_SERIES = "EQ";
+
+	private static final int INITIAL_SLOTS = 64;
+
+	private final int window;
+
+	// ticker -> slot, and slot -> ticker
+	private final Map<String, Integer> slots = new HashMap<>();
+	private String[] tickers = new String[INITIAL_SLOTS];
+	private int slotCount;
+
+	// the rings, "window" entries per slot
+	private double[] closes;
+	private double[] returns;
+	private double[] priceVolumes;
+	private double[] volumes;
+
+	// per slot
+	private int[] head;           // where the next bar goes in the slot's ring
+	private long[] bars;          // bars seen so far
+	private int[] returnCount;    // returns (not NaN) currently in the ring
+	private double[] lastClose;
+	private double[] sumClose;
+	private double[] sumReturn;
+	private double[] sumReturnSquared;
+	private double[] sumPriceVolume;
+	private double[] sumVolume;
+	private double[] averageGain;
+	private double[] averageLoss;
+
+
+	public IndicatorEngine(int window) {
+		if(window < 2) {
+			throw new IllegalArgumentException("Window must be at least 2 bars: " + window);
+		}
+		this.window = window;
+		allocate(INITIAL_SLOTS);
+	}
+
+
+	// add a bar for a ticker, returns the ticker's slot (which can be passed to onBar(int ...) and the getters)
+	public int onBar(String ticker, double high, double low, double close, double volume) {
+		int slot = slotOf(ticker);
+		if(slot < 0) {
+			slot = addSlot(ticker);
+		}
+		onBar(slot, high, low, close, volume);
+		return slot;
+	}
+
+	// add a bar by slot, skipping the ticker lookup
+	public void onBar(int slot, double high, double low, double close, double volume) {
+
+		checkSlot(slot);
+		int ring = slot * window + head[slot];
+		boolean full = bars[slot] >= window;
+
+		// 1. the close-to-close return and the RSI gain/loss need the previous close
+		double ret = Double.NaN;
+		if(bars[slot] > 0) {
+			double previous = lastClose[slot];
+			ret = (previous != 0) ? (close - previous) / previous : Double.NaN;
+			updateRsi(slot, close - previous);
+		}
+		lastClose[slot] = close;
+
+		// 2. take the oldest bar out of the running sums (once the ring is full, it is the one being overwritten)
+		if(full) {
+			sumClose[slot] -= closes[ring];
+			if(!Double.isNaN(returns[ring])) {
+				sumReturn[slot] -= returns[ring];
+				sumReturnSquared[slot] -= returns[ring] * returns[ring];
+				returnCount[slot]--;
+			}
+			if(!Double.isNaN(volumes[ring])) {
+				sumPriceVolume[slot] -= priceVolumes[ring];
+				sumVolume[slot] -= volumes[ring];
+			}
+		}
+
+		// 3. put the new bar in its place and add it to the sums
+		double priceVolume = (high + low + close) / 3 * volume;
+		closes[ring] = close;
+		returns[ring] = ret;
+		priceVolumes[ring] = priceVolume;
+		volumes[ring] = volume;
+		sumClose[slot] += close;
+		if(!Double.isNaN(ret)) {
+			sumReturn[slot] += ret;
+			sumReturnSquared[slot] += ret * ret;
+			returnCount[slot]++;
+		}
+		if(!Double.isNaN(volume)) {
+			sumPriceVolume[slot] += priceVolume;
+			sumVolume[slot] += volume;
+		}
+
+		bars[slot]++;
+		head[slot]++;
+		if(head[slot] == window) {
+			head[slot] = 0;
+			recomputeSums(slot);
+		}
+
+	}
+
+	// add every ticker of one bhavcopy day as a bar
+	// a bhavcopy has no volume, so these bars don't count towards the VWAP
+	public void onDay(OneDayMarketAction odma) {
+		onDay(odma, DEFAULT_SERIES);
+	}
+
+	// the same, taking the rows of the given series only. a ticker gets one bar a day, so with a day that was loaded
+	// with all its series, an EQ and a BE row of one ticker would otherwise be two bars for the same date
+	public void onDay(OneDayMarketAction odma, String series) {
+		MarketDay day = odma.getMarketDay();
+		int seriesSymbol = day.getSymbolTable().idOf(series);
+		if(seriesSymbol == SymbolTable.NO_SYMBOL) {
+			// no row has that series (rows without a series have NO_SYMBOL too, but aren't asked for)
+			return;
+		}
+		for(int id = 0; id < day.size(); id++) {
+			if(day.getSeriesSymbol(id) != seriesSymbol) {
+				continue;
+			}
+			onBar(day.getTicker(id), day.getHigh(id), day.getLow(id), day.getClose(id), Double.NaN);
+		}
+	}
+
+	// add a ticker's whole history (e.g. loaded from a Yahoo CSV) as bars, oldest first
+	public void onHistory(MarketHistory.TickerHistory history) {
+		for(int i = 0; i < history.size(); i++) {
+			onBar(history.getTicker(), history.getHigh(i), history.getLow(i), history.getClose(i), history.getVolume(i));
+		}
+	}
+
+
+	// Wilder's smoothing: the first "window" changes are averaged plainly, after that each new change counts 1/window
+	private void updateRsi(int slot, double change) {
+		double gain = change > 0 ? change : 0;
+		double loss = change < 0 ? -change : 0;
+		long changes = bars[slot]; // the change being added is number "bars" (the first bar has none)
+		if(changes <= window) {
+			averageGain[slot] += gain / window;
+			averageLoss[slot] += loss / window;
+		}
+		else {
+			averageGain[slot] = (averageGain[slot] * (window - 1) + gain) / window;
+			averageLoss[slot] = (averageLoss[slot] * (window - 1) + loss) / window;
+		}
+	}
+
+	// throw the running sums away and add up the ring again, which clears out the rounding error they have collected
+	private void recomputeSums(int slot) {
+		double closeTotal = 0;
+		double returnTotal = 0;
+		double returnSquares = 0;
+		double priceVolumeTotal = 0;
+		double volumeTotal = 0;
+		int returnsSeen = 0;
+		for(int ring = slot * window, end = ring + window; ring < end; ring++) {
+			closeTotal += closes[ring];
+			if(!Double.isNaN(returns[ring])) {
+				returnTotal += returns[ring];
+				returnSquares += returns[ring] * returns[ring];
+				returnsSeen++;
+			}
+			if(!Double.isNaN(volumes[ring])) {
+				priceVolumeTotal += priceVolumes[ring];
+				volumeTotal += volumes[ring];
+			}
+		}
+		sumClose[slot] = closeTotal;
+		sumReturn[slot] = returnTotal;
+		sumReturnSquared[slot] = returnSquares;
+		sumPriceVolume[slot] = priceVolumeTotal;
+		sumVolume[slot] = volumeTotal;
+		returnCount[slot] = returnsSeen;
+	}
+
+
+	// the indicators, all NaN until the ticker has enough bars
+
+	public double getMovingAverage(int slot) {
+		checkSlot(slot);
+		return bars[slot] >= window ? sumClose[slot] / window : Double.NaN;
+	}
+
+	public double getVolatility(int slot) {
+		checkSlot(slot);
+		int n = returnCount[slot];
+		if(n < window) {
+			return Double.NaN;
+		}
+		double variance = (sumReturnSquared[slot] - sumReturn[slot] * sumReturn[slot] / n) / (n - 1);
+		return Math.sqrt(Math.max(variance, 0));
+	}
+
+	public double getVwap(int slot) {
+		checkSlot(slot);
+		return (bars[slot] >= window && sumVolume[slot] > 0) ? sumPriceVolume[slot] / sumVolume[slot] : Double.NaN;
+	}
+
+	public double getRsi(int slot) {
+		checkSlot(slot);
+		if(bars[slot] <= window) {
+			return Double.NaN;
+		}
+		if(averageLoss[slot] == 0) {
+			// no losses at all: 100 if it only went up, 50 if it didn't move
+			return averageGain[slot] == 0 ? 50 : 100;
+		}
+		return 100 - 100 / (1 + averageGain[slot] / averageLoss[slot]);
+	}
+
+	public long getBars(int slot) {
+		checkSlot(slot);
+		return bars[slot];
+	}
+
+
+	public int getWindow() {
+		return window;
+	}
+
+	// the slot of a ticker, or -1 if it has never had a bar
+	public int slotOf(String ticker) {
+		Integer slot = slots.get(ticker);
+		return slot == null ? -1 : slot;
+	}
+
+	public String getTicker(int slot) {
+		checkSlot(slot);
+		return tickers[slot];
+	}
+
+	public int size() {
+		return slotCount;
+	}
+
+	// every ticker's slot, in ticker order (handy for writing a report)
+	public int[] getSlotsByTicker() {
+		List<String> names = new ArrayList<>(slots.keySet());
+		Collections.sort(names);
+		int[] result = new int[names.size()];
+		for(int i = 0; i < result.length; i++) {
+			result[i] = slots.get(names.get(i));
+		}
+		return result;
+	}
+
+
+	private int addSlot(String ticker) {
+		if(slotCount == head.length) {
+			allocate(slotCount * 2);
+		}
+		int slot = slotCount++;
+		tickers[slot] = ticker;
+		slots.put(ticker, slot);
+		return slot;
+	}
+
+	// (re)size every array for "capacity" slots, keeping what is already there
+	private void allocate(int capacity) {
+		tickers = Arrays.copyOf(tickers, capacity);
+		closes = grow(closes, capacity * window);
+		returns = grow(returns, capacity * window);
+		priceVolumes = grow(priceVolumes, capacity * window);
+		volumes = grow(volumes, capacity * window);
+		head = (head == null) ? new int[capacity] : Arrays.copyOf(head, capacity);
+		bars = (bars == null) ? new long[capacity] : Arrays.copyOf(bars, capacity);
+		returnCount = (returnCount == null) ? new int[capacity] : Arrays.copyOf(returnCount, capacity);
+		lastClose = grow(lastClose, capacity);
+		sumClose = grow(sumClose, capacity);
+		sumReturn = grow(sumReturn, capacity);
+		sumReturnSquared = grow(sumReturnSquared, capacity);
+		sumPriceVolume = grow(sumPriceVolume, capacity);
+		sumVolume = grow(sumVolume, capacity);
+		averageGain = grow(averageGain, capacity);
+		averageLoss = grow(averageLoss, capacity);
+	}
+
+	private static double[] grow(double[] array, int length) {
+		return (array == null) ? new double[length] : Arrays.copyOf(array, length);
+	}
+
+	private void checkSlot(int slot) {
+		if(slot < 0 || slot >= slotCount) {
+			throw new IndexOutOfBoundsException("Slot " + slot + " out of range, size=" + slotCount);
+		}
+	}
+
+}
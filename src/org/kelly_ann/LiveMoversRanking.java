@@ -0,0 +1,133 @@
+package org.kelly_ann;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+public class LiveMoversRanking implements MarketDay.ChangeListener {
+	// this class keeps the tickers of a MarketDay ranked by % change while their quotes are being updated during the day.
+	// the ranking is a sorted tree of ticker ids, so when one ticker's quote changes we only take that ticker out
+	// and put it back in its new place: O(log n) per update, instead of re-reading the file and sorting everything.
+	// asking for the top k gainers or losers then walks k steps from one end of the tree.
+	//
+	// NaN moves (prevClose == 0) are left out of the ranking, and ties go to the lower id (the ticker seen first),
+	// the same rules as OneDayMarketAction.getTopMovers() / TopKSelector.
+
+	// the % change each ticker was ranked with. the tree's order depends on these, so a ticker's value
+	// must only change here while the ticker is out of the tree
+	private double[] rankedChange;
+
+	private final TreeSet<Integer> ranking;
+
+
+	// rank every ticker that is in the day right now, later changes come in through tickerChanged()
+	public LiveMoversRanking(MarketDay day) {
+
+		rankedChange = day.getPercentageChanges();
+		if(rankedChange.length == 0) {
+			rankedChange = new double[16];
+			Arrays.fill(rankedChange, Double.NaN);
+		}
+
+		// smallest % change first, and the lower id first among equal changes
+		ranking = new TreeSet<>(new Comparator<Integer>() {
+			@Override
+			public int compare(Integer id1, Integer id2) {
+				int byChange = Double.compare(rankedChange[id1], rankedChange[id2]);
+				return (byChange != 0) ? byChange : Integer.compare(id1, id2);
+			}
+		});
+
+		for(int id = 0; id < day.size(); id++) {
+			if(!Double.isNaN(rankedChange[id])) {
+				ranking.add(id);
+			}
+		}
+
+	}
+
+
+	// re-rank one ticker after its quote changed (or it was just added)
+	@Override
+	public void tickerChanged(MarketDay day, int id) {
+
+		if(id >= rankedChange.length) {
+			int oldLength = rankedChange.length;
+			rankedChange = Arrays.copyOf(rankedChange, Math.max(id + 1, oldLength * 2));
+			Arrays.fill(rankedChange, oldLength, rankedChange.length, Double.NaN);
+		}
+
+		// take it out using the value it was ranked with, then put it back with its new one
+		if(!Double.isNaN(rankedChange[id])) {
+			ranking.remove(id);
+		}
+		rankedChange[id] = day.getPercentageChange(id);
+		if(!Double.isNaN(rankedChange[id])) {
+			ranking.add(id);
+		}
+
+	}
+
+
+	// the ids of the k biggest gainers, biggest first
+	public int[] topGainers(int k) {
+
+		// walking the tree from the top gives equal changes with the highest id first,
+		// so each run of ties is collected and then flipped round to put the lowest id first
+		List<Integer> ids = new ArrayList<>(k);
+		Iterator<Integer> it = ranking.descendingIterator();
+		int tiesStart = 0;
+		while(it.hasNext()) {
+			int id = it.next();
+			if(ids.size() > tiesStart && Double.compare(rankedChange[ids.get(tiesStart)], rankedChange[id]) != 0) {
+				reverse(ids, tiesStart, ids.size());
+				tiesStart = ids.size();
+				if(tiesStart >= k) {
+					break;
+				}
+			}
+			ids.add(id);
+		}
+		if(tiesStart < ids.size()) {
+			reverse(ids, tiesStart, ids.size());
+		}
+		return toArray(ids, k);
+
+	}
+
+	// the ids of the k biggest losers, biggest drop first
+	public int[] topLosers(int k) {
+		List<Integer> ids = new ArrayList<>(k);
+		Iterator<Integer> it = ranking.iterator();
+		while(ids.size() < k && it.hasNext()) {
+			ids.add(it.next());
+		}
+		return toArray(ids, k);
+	}
+
+	// the number of tickers that have a (non-NaN) move
+	public int size() {
+		return ranking.size();
+	}
+
+
+	private static void reverse(List<Integer> ids, int from, int to) {
+		for(int i = from, j = to - 1; i < j; i++, j--) {
+			Integer swap = ids.get(i);
+			ids.set(i, ids.get(j));
+			ids.set(j, swap);
+		}
+	}
+
+	private static int[] toArray(List<Integer> ids, int k) {
+		int[] result = new int[Math.min(k, ids.size())];
+		for(int i = 0; i < result.length; i++) {
+			result[i] = ids.get(i);
+		}
+		return result;
+	}
+
+}
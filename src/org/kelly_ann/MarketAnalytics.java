@@ -0,0 +1,203 @@
+package org.kelly_ann;
+
+import java.util.Arrays;
+
+public class MarketAnalytics {
+	// this class computes whole-market statistics for one trading day straight from the MarketDay's columns:
+	//   breadth        how many tickers closed up, down or unchanged against their previous close
+	//   % change       (close - prevClose) / prevClose, the same number as OneTickerOneDay.getPercentageChange()
+	//   range %        (high - low) / prevClose, how far the ticker travelled during the day
+	//   gap %          (open - prevClose) / prevClose, how far it opened away from yesterday's close
+	//   distribution   mean, standard deviation and percentiles of the % changes
+	// every ticker with prevClose == 0 gets NaN for all three ratios (like getPercentageChange()) and is left out of
+	// the breadth counts and the distribution.
+	//
+	// everything but the final sort is done in one loop over the primitive arrays, with no objects and no method calls
+	// per ticker, so each column is read from memory once.
+	// note: the project is built for Java 8, where the incubating Vector API doesn't exist, so there is no explicit
+	// SIMD path; the loop stays on straight array indexing, which keeps it cheap for HotSpot to compile. the results are
+	// exactly what the per-object code gives, because each ratio is computed with the very same expression.
+
+	// Note: all these member functions are static since they only work on the day passed in
+
+	// the percentiles reported by analyze()
+	public static final double[] DEFAULT_PERCENTILES = {0.05, 0.25, 0.50, 0.75, 0.95};
+
+
+	// analyze a whole day
+	public static DayStatistics analyze(MarketDay day) {
+		return analyze(day, DEFAULT_PERCENTILES);
+	}
+
+	public static DayStatistics analyze(MarketDay day, double[] percentiles) {
+
+		int n = day.size();
+		double[] open = day.openColumn();
+		double[] high = day.highColumn();
+		double[] low = day.lowColumn();
+		double[] close = day.closeColumn();
+		double[] prevClose = day.prevCloseColumn();
+
+		DayStatistics stats = new DayStatistics();
+		stats.percentageChanges = new double[n];
+		stats.rangePercentages = new double[n];
+		stats.gapPercentages = new double[n];
+
+		// 1. one pass over the columns: the per-ticker ratios, breadth, the running mean and variance, and the
+		//    changes without the NaNs copied out for the percentiles
+		// the variance is accumulated with Welford's update, which is as accurate as summing the deviations from the
+		// mean in a second pass, without needing the mean up front. the mean itself is still sum / counted.
+		double[] change = stats.percentageChanges;
+		double[] range = stats.rangePercentages;
+		double[] gap = stats.gapPercentages;
+		double[] sorted = new double[n];
+		int advancers = 0;
+		int decliners = 0;
+		int unchanged = 0;
+		int withoutPrevClose = 0;
+		int counted = 0;
+		double sum = 0;
+		double runningMean = 0;
+		double squares = 0;
+		for(int id = 0; id < n; id++) {
+			double prev = prevClose[id];
+			if(prev == 0) {
+				// NaN for all three ratios, left out of everything else
+				withoutPrevClose++;
+				change[id] = Double.NaN;
+				range[id] = Double.NaN;
+				gap[id] = Double.NaN;
+				continue;
+			}
+			double c = (close[id] - prev) / prev;
+			change[id] = c;
+			range[id] = (high[id] - low[id]) / prev;
+			gap[id] = (open[id] - prev) / prev;
+			if(c > 0) {
+				advancers++;
+			}
+			else if(c < 0) {
+				decliners++;
+			}
+			else if(c == 0) {
+				unchanged++;
+			}
+			else {
+				// a NaN price gives a NaN change, which isn't counted either
+				continue;
+			}
+			sorted[counted++] = c;
+			sum += c;
+			double d = c - runningMean;
+			runningMean += d / counted;
+			squares += d * (c - runningMean);
+		}
+		stats.advancers = advancers;
+		stats.decliners = decliners;
+		stats.unchanged = unchanged;
+		stats.withoutPrevClose = withoutPrevClose;
+
+		// 2. mean and (population) standard deviation
+		stats.mean = (counted > 0) ? sum / counted : Double.NaN;
+		stats.standardDeviation = (counted > 0) ? Math.sqrt(squares / counted) : Double.NaN;
+
+		// 3. percentiles of the changes (nearest rank), sorting only the part of the copy that was filled
+		Arrays.sort(sorted, 0, counted);
+		stats.percentiles = percentiles.clone();
+		stats.percentileValues = new double[percentiles.length];
+		for(int i = 0; i < percentiles.length; i++) {
+			stats.percentileValues[i] = nearestRank(sorted, counted, percentiles[i]);
+		}
+
+		return stats;
+
+	}
+
+	// the value at a fraction of the first length entries of a sorted array
+	private static double nearestRank(double[] sorted, int length, double fraction) {
+		if(length == 0) {
+			return Double.NaN;
+		}
+		int rank = (int) Math.ceil(fraction * length);
+		return sorted[Math.max(0, Math.min(length - 1, rank - 1))];
+	}
+
+
+	// the results of analyze()
+	public static class DayStatistics {
+
+		private int advancers;
+		private int decliners;
+		private int unchanged;
+		private int withoutPrevClose;
+		private double mean;
+		private double standardDeviation;
+		private double[] percentiles;
+		private double[] percentileValues;
+
+		// per ticker, indexed by ticker id
+		private double[] percentageChanges;
+		private double[] rangePercentages;
+		private double[] gapPercentages;
+
+		public int getAdvancers() {
+			return advancers;
+		}
+
+		public int getDecliners() {
+			return decliners;
+		}
+
+		public int getUnchanged() {
+			return unchanged;
+		}
+
+		// tickers with prevClose == 0, which have no % change and aren't counted anywhere else
+		// (a ticker whose close or prevClose is NaN has no % change either, but isn't counted here or anywhere)
+		public int getWithoutPrevClose() {
+			return withoutPrevClose;
+		}
+
+		// advancers / decliners, the usual breadth ratio (infinite when nothing declined)
+		public double getAdvanceDeclineRatio() {
+			return (double) advancers / decliners;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public double getStandardDeviation() {
+			return standardDeviation;
+		}
+
+		// the value at a percentile asked for in analyze(), e.g. getPercentile(0.5) for the median
+		public double getPercentile(double fraction) {
+			for(int i = 0; i < percentiles.length; i++) {
+				if(percentiles[i] == fraction) {
+					return percentileValues[i];
+				}
+			}
+			throw new IllegalArgumentException("Percentile " + fraction + " was not computed");
+		}
+
+		public double getPercentageChange(int id) {
+			return percentageChanges[id];
+		}
+
+		public double getRangePercentage(int id) {
+			return rangePercentages[id];
+		}
+
+		public double getGapPercentage(int id) {
+			return gapPercentages[id];
+		}
+
+		@Override
+		public String toString() {
+			return "Advancers=" + advancers + ", Decliners=" + decliners + ", Unchanged=" + unchanged
+					+ ", Mean=" + mean + ", StdDev=" + standardDeviation + ", Percentiles=" + Arrays.toString(percentileValues);
+		}
+	}
+
+}
@@ -0,0 +1,464 @@
+package org.kelly_ann;
+
+import java.util.Arrays;
+
+public class MarketDay {
+	// this class stores one trading day of tickers in a "columnar" layout:
+	// instead of one object per ticker (each with its own header, its own doubles and its own Strings)
+	// we keep one primitive array per column and give every ticker an int id which is its index into those arrays.
+	// e.g. the close of the ticker with id 7 is close[7] and its prev close is prevClose[7].
+	// a small symbol dictionary maps the ticker name to its id so "give me ticker=XYZ" is still one lookup.
+	// the ticker and series names themselves are stored as SymbolTable ids, so all the days share one copy of each name
+	// and the dictionary only ever compares ints.
+	// a row is keyed by its ticker and its series together, because the same ticker can trade in more than one series
+	// on the same day (e.g. EQ and BL). a day that only holds EQ rows has one row per ticker, exactly as before.
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	// the columns, all indexed by ticker id
+	// note: only the first "size" entries of each array are in use, the rest is room to grow
+	private int[] tickers;
+	private int[] series;
+	private double[] open;
+	private double[] high;
+	private double[] low;
+	private double[] close;
+	private double[] prevClose;
+	private int size;
+
+	// bumped on every change to the columns so anything computed from them (e.g. cached movers) knows when it is stale
+	private int version;
+
+	// told about every change to a ticker's values, e.g. so a live movers ranking can re-rank just that ticker
+	private ChangeListener changeListener;
+
+	// a frozen day can't be changed any more, which makes it safe to share between threads without locking
+	private boolean frozen;
+
+	// the symbol dictionary: an open-addressing hash table holding (id + 1) for each ticker, 0 means the slot is free
+	// we use a plain int[] rather than a HashMap<String, Integer> so there is no Entry or Integer object per ticker
+	// the table is hashed on the ticker's symbol id, so a lookup never touches a String, and all the rows of one
+	// ticker (one per series) sit on the same probe path in the order they were added
+	private int[] idTable;
+
+	// where the ticker and series symbol ids come from
+	private final SymbolTable symbols;
+
+
+	public MarketDay() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	// use this when the number of tickers is roughly known up front (e.g. ~2000 EQ symbols a day) to avoid re-growing
+	public MarketDay(int expectedTickers) {
+		this(expectedTickers, SymbolTable.global());
+	}
+
+	// a day whose names come from (and are added to) the given symbol table instead of the global one
+	public MarketDay(int expectedTickers, SymbolTable symbols) {
+		this.symbols = symbols;
+		int capacity = Math.max(expectedTickers, 1);
+		tickers = new int[capacity];
+		series = new int[capacity];
+		open = new double[capacity];
+		high = new double[capacity];
+		low = new double[capacity];
+		close = new double[capacity];
+		prevClose = new double[capacity];
+		idTable = new int[tableSizeFor(capacity)];
+	}
+
+
+	// build a day straight from already filled-in columns, e.g. ones read back from a snapshot file
+	// the price arrays are taken over as they are (not copied), ticker id i is row i of every array
+	// the names are turned into ids of the global symbol table
+	static MarketDay fromColumns(String[] tickers, String[] series, double[] open, double[] high, double[] low,
+			double[] close, double[] prevClose) {
+		SymbolTable symbols = SymbolTable.global();
+		int[] tickerSymbols = new int[tickers.length];
+		int[] seriesSymbols = new int[series.length];
+		for(int id = 0; id < tickers.length; id++) {
+			tickerSymbols[id] = symbols.intern(tickers[id]);
+			seriesSymbols[id] = symbols.intern(series[id]);
+		}
+		return fromSymbols(symbols, tickerSymbols, seriesSymbols, open, high, low, close, prevClose);
+	}
+
+	// the same with the names already turned into symbol ids of "symbols"
+	private static MarketDay fromSymbols(SymbolTable symbols, int[] tickers, int[] series, double[] open, double[] high,
+			double[] low, double[] close, double[] prevClose) {
+		MarketDay day = new MarketDay(1, symbols);
+		day.tickers = tickers;
+		day.series = series;
+		day.open = open;
+		day.high = high;
+		day.low = low;
+		day.close = close;
+		day.prevClose = prevClose;
+		day.size = tickers.length;
+		day.rebuildIdTable(tableSizeFor(tickers.length));
+		return day;
+	}
+
+
+	// add a ticker's values for the day and return its id
+	// like Map.put(), adding a ticker + series that is already here overwrites its values and keeps its id
+	public int put(String ticker, String series, double open, double close, double high, double low, double prevClose) {
+		return putSymbols(symbols.intern(ticker), symbols.intern(series), open, close, high, low, prevClose);
+	}
+
+	// the same with the names already turned into ids of this day's symbol table
+	public int putSymbols(int tickerSymbol, int seriesSymbol, double open, double close, double high, double low, double prevClose) {
+
+		checkNotFrozen();
+		int id = idOfSymbols(tickerSymbol, seriesSymbol);
+		if(id < 0) {
+			id = size;
+			ensureCapacity(size + 1);
+			tickers[id] = tickerSymbol;
+			size++;
+			insertId(tickerSymbol, id);
+		}
+
+		this.series[id] = seriesSymbol;
+		this.open[id] = open;
+		this.close[id] = close;
+		this.high[id] = high;
+		this.low[id] = low;
+		this.prevClose[id] = prevClose;
+		changed(id);
+
+		return id;
+
+	}
+
+
+	// make a copy of this day with its own arrays (the change listener is not copied)
+	public MarketDay copy() {
+		MarketDay copy = fromSymbols(symbols, Arrays.copyOf(tickers, size), Arrays.copyOf(series, size),
+				Arrays.copyOf(open, size), Arrays.copyOf(high, size), Arrays.copyOf(low, size),
+				Arrays.copyOf(close, size), Arrays.copyOf(prevClose, size));
+		copy.version = version;
+		return copy;
+	}
+
+	// make an unchangeable copy of this day: any put() or setter on the copy throws an UnsupportedOperationException.
+	// the copy has its own arrays, so this day can keep being updated while other threads read the copy.
+	public MarketDay frozenCopy() {
+		MarketDay copy = copy();
+		copy.frozen = true;
+		return copy;
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+
+	// look up the id of a ticker, or -1 if the ticker did not trade on this day
+	// if the ticker traded in more than one series this is the row that was added first
+	public int idOf(String ticker) {
+		int tickerSymbol = symbols.idOf(ticker);
+		return tickerSymbol == SymbolTable.NO_SYMBOL ? -1 : idOfSymbol(tickerSymbol);
+	}
+
+	// look up the id of a ticker in one series, or -1 if it did not trade in that series on this day
+	public int idOf(String ticker, String series) {
+		int tickerSymbol = symbols.idOf(ticker);
+		int seriesSymbol = symbols.idOf(series);
+		if(tickerSymbol == SymbolTable.NO_SYMBOL || (seriesSymbol == SymbolTable.NO_SYMBOL && series != null)) {
+			return -1;
+		}
+		return idOfSymbols(tickerSymbol, seriesSymbol);
+	}
+
+	// the same as idOf(ticker) by the ticker's symbol id, which is just int compares
+	public int idOfSymbol(int tickerSymbol) {
+
+		int mask = idTable.length - 1;
+		int slot = spread(tickerSymbol) & mask;
+		while(idTable[slot] != 0) {
+			int id = idTable[slot] - 1;
+			if(tickers[id] == tickerSymbol) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+
+	}
+
+	// the same as idOf(ticker, series) by symbol ids
+	public int idOfSymbols(int tickerSymbol, int seriesSymbol) {
+
+		int mask = idTable.length - 1;
+		int slot = spread(tickerSymbol) & mask;
+		while(idTable[slot] != 0) {
+			int id = idTable[slot] - 1;
+			if(tickers[id] == tickerSymbol && series[id] == seriesSymbol) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+
+	}
+
+	public SymbolTable getSymbolTable() {
+		return symbols;
+	}
+
+
+	public int size() {
+		return size;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	// something that wants to hear about changes to individual tickers
+	public interface ChangeListener {
+		// called after the values of ticker "id" (possibly a brand new ticker) have changed
+		void tickerChanged(MarketDay day, int id);
+	}
+
+	// only one listener is supported, which is all OneDayMarketAction needs
+	public void setChangeListener(ChangeListener changeListener) {
+		checkNotFrozen();
+		this.changeListener = changeListener;
+	}
+
+	private void changed(int id) {
+		version++;
+		if(changeListener != null) {
+			changeListener.tickerChanged(this, id);
+		}
+	}
+
+
+	// give back any unused room at the end of the columns once a day has been fully loaded
+	public void trimToSize() {
+		checkNotFrozen();
+		if(tickers.length > size) {
+			resize(Math.max(size, 1));
+		}
+	}
+
+
+	// the (close - prevClose) / prevClose move of one ticker, NaN when there is no previous close
+	public double getPercentageChange(int id) {
+		if(prevClose[id] != 0) {
+			return (close[id] - prevClose[id]) / prevClose[id];
+		}
+		return Double.NaN;
+	}
+
+
+	// compute the percentage change of every ticker in one pass over the columns
+	// the result is indexed by ticker id, so result[id] == getPercentageChange(id)
+	public double[] getPercentageChanges() {
+		double[] changes = new double[size];
+		for(int id = 0; id < size; id++) {
+			changes[id] = getPercentageChange(id);
+		}
+		return changes;
+	}
+
+
+	// direct access to the columns for code in this package that loops over every ticker (e.g. MarketAnalytics)
+	// only the first size() entries are tickers, and the arrays must not be changed through these
+	double[] openColumn() {
+		return open;
+	}
+
+	double[] highColumn() {
+		return high;
+	}
+
+	double[] lowColumn() {
+		return low;
+	}
+
+	double[] closeColumn() {
+		return close;
+	}
+
+	double[] prevCloseColumn() {
+		return prevClose;
+	}
+
+
+	// column getters and setters, all by ticker id
+
+	public String getTicker(int id) {
+		checkId(id);
+		return symbols.getName(tickers[id]);
+	}
+
+	// the ticker's id in the symbol table, the same on every day that shares the table
+	public int getTickerSymbol(int id) {
+		checkId(id);
+		return tickers[id];
+	}
+
+	// renaming a ticker means its slot in the symbol dictionary moves, so the dictionary is rebuilt
+	// this is rare (the loaders never do it) so we keep put()/idOf() simple instead of supporting removal
+	public void setTicker(int id, String ticker) {
+		checkId(id);
+		checkNotFrozen();
+		int tickerSymbol = symbols.intern(ticker);
+		int existing = idOfSymbols(tickerSymbol, series[id]);
+		if(existing >= 0 && existing != id) {
+			throw new IllegalArgumentException("Ticker " + ticker + " already has id " + existing);
+		}
+		tickers[id] = tickerSymbol;
+		rebuildIdTable(idTable.length);
+		changed(id);
+	}
+
+	public String getSeries(int id) {
+		checkId(id);
+		return symbols.getName(series[id]);
+	}
+
+	public int getSeriesSymbol(int id) {
+		checkId(id);
+		return series[id];
+	}
+
+	// the dictionary is hashed on the ticker alone, so a new series doesn't move the row, it only has to stay unique
+	public void setSeries(int id, String series) {
+		checkId(id);
+		checkNotFrozen();
+		int seriesSymbol = symbols.intern(series);
+		int existing = idOfSymbols(tickers[id], seriesSymbol);
+		if(existing >= 0 && existing != id) {
+			throw new IllegalArgumentException("Ticker " + getTicker(id) + " already has id " + existing + " in series " + series);
+		}
+		this.series[id] = seriesSymbol;
+		changed(id);
+	}
+
+	public double getOpen(int id) {
+		checkId(id);
+		return open[id];
+	}
+
+	public void setOpen(int id, double open) {
+		checkId(id);
+		checkNotFrozen();
+		this.open[id] = open;
+		changed(id);
+	}
+
+	public double getHigh(int id) {
+		checkId(id);
+		return high[id];
+	}
+
+	public void setHigh(int id, double high) {
+		checkId(id);
+		checkNotFrozen();
+		this.high[id] = high;
+		changed(id);
+	}
+
+	public double getLow(int id) {
+		checkId(id);
+		return low[id];
+	}
+
+	public void setLow(int id, double low) {
+		checkId(id);
+		checkNotFrozen();
+		this.low[id] = low;
+		changed(id);
+	}
+
+	public double getClose(int id) {
+		checkId(id);
+		return close[id];
+	}
+
+	public void setClose(int id, double close) {
+		checkId(id);
+		checkNotFrozen();
+		this.close[id] = close;
+		changed(id);
+	}
+
+	public double getPrevClose(int id) {
+		checkId(id);
+		return prevClose[id];
+	}
+
+	public void setPrevClose(int id, double prevClose) {
+		checkId(id);
+		checkNotFrozen();
+		this.prevClose[id] = prevClose;
+		changed(id);
+	}
+
+
+	private void checkNotFrozen() {
+		if(frozen) {
+			throw new UnsupportedOperationException("This market day is a frozen snapshot and can't be changed");
+		}
+	}
+
+	// the arrays behind this class are only ever as long as they need to be, but ids past "size" are not tickers
+	private void checkId(int id) {
+		if(id < 0 || id >= size) {
+			throw new IndexOutOfBoundsException("Ticker id " + id + " out of range, size=" + size);
+		}
+	}
+
+	private void ensureCapacity(int needed) {
+		if(needed > tickers.length) {
+			resize(Math.max(needed, tickers.length * 2));
+		}
+	}
+
+	private void resize(int capacity) {
+		tickers = Arrays.copyOf(tickers, capacity);
+		series = Arrays.copyOf(series, capacity);
+		open = Arrays.copyOf(open, capacity);
+		high = Arrays.copyOf(high, capacity);
+		low = Arrays.copyOf(low, capacity);
+		close = Arrays.copyOf(close, capacity);
+		prevClose = Arrays.copyOf(prevClose, capacity);
+		if(tableSizeFor(capacity) != idTable.length) {
+			rebuildIdTable(tableSizeFor(capacity));
+		}
+	}
+
+	private void insertId(int tickerSymbol, int id) {
+		int mask = idTable.length - 1;
+		int slot = spread(tickerSymbol) & mask;
+		while(idTable[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		idTable[slot] = id + 1;
+	}
+
+	private void rebuildIdTable(int tableSize) {
+		idTable = new int[tableSize];
+		for(int id = 0; id < size; id++) {
+			insertId(tickers[id], id);
+		}
+	}
+
+	// the hash table is kept at most half full so lookups stay short
+	private static int tableSizeFor(int capacity) {
+		int tableSize = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) << 1;
+		return Math.max(tableSize, 4);
+	}
+
+	// symbol ids are small consecutive ints, multiplying by a large odd constant scatters neighbouring ids over the table
+	private static int spread(int symbol) {
+		int h = symbol * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+}
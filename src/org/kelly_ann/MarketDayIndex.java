@@ -0,0 +1,373 @@
+package org.kelly_ann;
+
+import java.util.Arrays;
+
+public class MarketDayIndex {
+	// this class answers filter queries on one day, e.g. "EQ stocks with close between 100 and 500 that moved more
+	// than 5%", without looking at every ticker:
+	// 1. a bitmap per series with one bit per ticker id, so "is this id an EQ row" is one bit test and
+	//    "every BE row" only walks the words of one bitmap
+	// 2. the ids sorted by close and by % change, next to their sorted values, so finding a range is two binary
+	//    searches and then only the ids inside it are touched: O(log n + hits) instead of O(n)
+	// 3. a compound query starts from its narrowest range and checks the other conditions on just those ids
+	//
+	// the index is a picture of the day as it was when it was built (the values it needs are copied in).
+	// use OneDayMarketAction.getIndex(), which keeps one and builds a new one once the day has changed.
+	// NaN values (a % change with no prevClose) are in no range, and the bounds of every range are included.
+
+	private final int version;
+	private final int size;
+	private final SymbolTable symbols;
+
+	// the series symbol ids in the order they were first seen, and a bitmap of the ids in each
+	private final int[] seriesSymbols;
+	private final long[][] seriesBitmaps;
+	private final int[] seriesCounts;
+
+	// the values by id, for checking a condition on one id
+	private final double[] closes;
+	private final double[] changes;
+
+	// the ids ordered by value (ties in id order) and the values in that same order, NaNs left out
+	private final int[] idsByClose;
+	private final double[] sortedCloses;
+	private final int[] idsByChange;
+	private final double[] sortedChanges;
+
+
+	// build the indexes of the day as it is now
+	public MarketDayIndex(MarketDay day) {
+
+		this.version = day.getVersion();
+		this.size = day.size();
+		this.symbols = day.getSymbolTable();
+
+		// 1. one bitmap per series, there are only a handful of series so a short list beats a map
+		int[] seen = new int[8];
+		long[][] bitmaps = new long[8][];
+		int[] counts = new int[8];
+		int seriesCount = 0;
+		int words = (size + 63) >>> 6;
+		for(int id = 0; id < size; id++) {
+			int seriesSymbol = day.getSeriesSymbol(id);
+			if(seriesSymbol == SymbolTable.NO_SYMBOL) {
+				continue;
+			}
+			int s = 0;
+			while(s < seriesCount && seen[s] != seriesSymbol) {
+				s++;
+			}
+			if(s == seriesCount) {
+				if(seriesCount == seen.length) {
+					seen = Arrays.copyOf(seen, seriesCount * 2);
+					bitmaps = Arrays.copyOf(bitmaps, seriesCount * 2);
+					counts = Arrays.copyOf(counts, seriesCount * 2);
+				}
+				seen[s] = seriesSymbol;
+				bitmaps[s] = new long[words];
+				seriesCount++;
+			}
+			bitmaps[s][id >>> 6] |= 1L << id;
+			counts[s]++;
+		}
+		this.seriesSymbols = Arrays.copyOf(seen, seriesCount);
+		this.seriesBitmaps = Arrays.copyOf(bitmaps, seriesCount);
+		this.seriesCounts = Arrays.copyOf(counts, seriesCount);
+
+		// 2. the sorted indexes
+		this.closes = Arrays.copyOf(day.closeColumn(), size);
+		this.changes = day.getPercentageChanges();
+		this.idsByClose = sortedIds(closes);
+		this.sortedCloses = valuesInOrder(closes, idsByClose);
+		this.idsByChange = sortedIds(changes);
+		this.sortedChanges = valuesInOrder(changes, idsByChange);
+
+	}
+
+
+	// the MarketDay version the index was built from
+	public int getVersion() {
+		return version;
+	}
+
+	// the series that have at least one row on this day, in the order they first appear
+	public String[] getSeries() {
+		String[] names = new String[seriesSymbols.length];
+		for(int s = 0; s < names.length; s++) {
+			names[s] = symbols.getName(seriesSymbols[s]);
+		}
+		return names;
+	}
+
+	// the number of rows in one series
+	public int countInSeries(String series) {
+		int s = seriesIndexOf(series);
+		return s < 0 ? 0 : seriesCounts[s];
+	}
+
+	// the ids of every row in one series, in id order
+	public int[] idsInSeries(String series) {
+		return query().series(series).ids();
+	}
+
+	// the ids with a close in [min, max], from the lowest close to the highest
+	public int[] closeBetween(double min, double max) {
+		int from = lowerBound(sortedCloses, min);
+		return Arrays.copyOfRange(idsByClose, from, Math.max(from, upperBound(sortedCloses, max)));
+	}
+
+	// the ids with a % change in [min, max] (0.05 is +5%), from the biggest drop to the biggest gain
+	public int[] changeBetween(double min, double max) {
+		int from = lowerBound(sortedChanges, min);
+		return Arrays.copyOfRange(idsByChange, from, Math.max(from, upperBound(sortedChanges, max)));
+	}
+
+	// a new query on this index, with no conditions yet (i.e. it matches every row)
+	public Query query() {
+		return new Query();
+	}
+
+
+	// a compound filter: the ids that match every condition that was set
+	// calling the same condition twice narrows it down to both ranges
+	public class Query {
+
+		private int[] series;	// null = any series
+		private double minClose = Double.NEGATIVE_INFINITY;
+		private double maxClose = Double.POSITIVE_INFINITY;
+		private boolean closeSet;
+		private double minChange = Double.NEGATIVE_INFINITY;
+		private double maxChange = Double.POSITIVE_INFINITY;
+		private boolean changeSet;
+
+		private Query() {
+		}
+
+		// only rows in one of these series
+		public Query series(String... names) {
+			int[] wanted = new int[names.length];
+			int count = 0;
+			for(String name : names) {
+				int s = seriesIndexOf(name);
+				if(s >= 0 && !contains(wanted, count, s)) {
+					wanted[count++] = s;
+				}
+			}
+			series = Arrays.copyOf(wanted, count);
+			return this;
+		}
+
+		// only rows with a close in [min, max]
+		public Query closeBetween(double min, double max) {
+			minClose = Math.max(minClose, min);
+			maxClose = Math.min(maxClose, max);
+			closeSet = true;
+			return this;
+		}
+
+		// only rows with a % change in [min, max], e.g. changeBetween(0.05, Double.POSITIVE_INFINITY) for "up more than 5%"
+		public Query changeBetween(double min, double max) {
+			minChange = Math.max(minChange, min);
+			maxChange = Math.min(maxChange, max);
+			changeSet = true;
+			return this;
+		}
+
+		// the matching ids, in id order
+		public int[] ids() {
+
+			// 1. without a range the series bitmaps are the answer
+			if(!closeSet && !changeSet) {
+				return series == null ? allIds() : bitmapIds();
+			}
+
+			// 2. otherwise start from the narrower of the ranges, found with binary searches
+			int closeFrom = 0, closeTo = Integer.MAX_VALUE;
+			if(closeSet) {
+				closeFrom = lowerBound(sortedCloses, minClose);
+				closeTo = Math.max(closeFrom, upperBound(sortedCloses, maxClose));
+			}
+			int changeFrom = 0, changeTo = Integer.MAX_VALUE;
+			if(changeSet) {
+				changeFrom = lowerBound(sortedChanges, minChange);
+				changeTo = Math.max(changeFrom, upperBound(sortedChanges, maxChange));
+			}
+			boolean byClose = (closeTo - closeFrom) <= (changeTo - changeFrom);
+			int[] candidates = byClose ? idsByClose : idsByChange;
+			int from = byClose ? closeFrom : changeFrom;
+			int to = byClose ? closeTo : changeTo;
+
+			// 3. and check the other conditions on just those ids
+			int[] result = new int[to - from];
+			int count = 0;
+			for(int i = from; i < to; i++) {
+				int id = candidates[i];
+				if(byClose && changeSet && !(changes[id] >= minChange && changes[id] <= maxChange)) {
+					continue;
+				}
+				if(!byClose && closeSet && !(closes[id] >= minClose && closes[id] <= maxClose)) {
+					continue;
+				}
+				if(series != null && !inSeries(id)) {
+					continue;
+				}
+				result[count++] = id;
+			}
+			result = Arrays.copyOf(result, count);
+			Arrays.sort(result);
+			return result;
+
+		}
+
+		// the number of matching ids
+		public int count() {
+			if(!closeSet && !changeSet) {
+				if(series == null) {
+					return size;
+				}
+				int count = 0;
+				for(int s : series) {
+					count += seriesCounts[s];
+				}
+				return count;
+			}
+			return ids().length;
+		}
+
+		private boolean inSeries(int id) {
+			for(int s : series) {
+				if((seriesBitmaps[s][id >>> 6] & (1L << id)) != 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		// the set bits of the wanted series' bitmaps, a row is only ever in one series so there are no duplicates
+		private int[] bitmapIds() {
+			int[] result = new int[count()];
+			int count = 0;
+			for(int word = 0; word < (size + 63) >>> 6; word++) {
+				long bits = 0;
+				for(int s : series) {
+					bits |= seriesBitmaps[s][word];
+				}
+				while(bits != 0) {
+					result[count++] = (word << 6) + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+				}
+			}
+			return result;
+		}
+
+		private boolean contains(int[] values, int count, int value) {
+			for(int i = 0; i < count; i++) {
+				if(values[i] == value) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private int[] allIds() {
+			int[] result = new int[size];
+			for(int id = 0; id < size; id++) {
+				result[id] = id;
+			}
+			return result;
+		}
+	}
+
+
+	// where a series is in seriesSymbols, or -1 if no row is in it
+	private int seriesIndexOf(String series) {
+		int seriesSymbol = symbols.idOf(series);
+		if(seriesSymbol == SymbolTable.NO_SYMBOL) {
+			return -1;
+		}
+		for(int s = 0; s < seriesSymbols.length; s++) {
+			if(seriesSymbols[s] == seriesSymbol) {
+				return s;
+			}
+		}
+		return -1;
+	}
+
+	// the first position whose value is >= min
+	private static int lowerBound(double[] sorted, double min) {
+		int low = 0, high = sorted.length;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(sorted[middle] < min) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	// the first position whose value is > max
+	private static int upperBound(double[] sorted, double max) {
+		int low = 0, high = sorted.length;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(sorted[middle] <= max) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	// the ids of the non-NaN values, ordered by value (equal values keep their id order)
+	// a bottom-up merge sort on the int ids, so there is no Integer or comparator object per id
+	private static int[] sortedIds(double[] values) {
+
+		int[] ids = new int[values.length];
+		int n = 0;
+		for(int id = 0; id < values.length; id++) {
+			if(!Double.isNaN(values[id])) {
+				ids[n++] = id;
+			}
+		}
+		ids = Arrays.copyOf(ids, n);
+
+		int[] buffer = new int[n];
+		for(int width = 1; width < n; width *= 2) {
+			for(int left = 0; left < n - width; left += 2 * width) {
+				int middle = left + width;
+				int right = Math.min(left + 2 * width, n);
+				// already in order, nothing to merge
+				if(values[ids[middle - 1]] <= values[ids[middle]]) {
+					continue;
+				}
+				int i = left, j = middle, k = left;
+				while(i < middle && j < right) {
+					buffer[k++] = (values[ids[j]] < values[ids[i]]) ? ids[j++] : ids[i++];
+				}
+				while(i < middle) {
+					buffer[k++] = ids[i++];
+				}
+				while(j < right) {
+					buffer[k++] = ids[j++];
+				}
+				System.arraycopy(buffer, left, ids, left, right - left);
+			}
+		}
+		return ids;
+
+	}
+
+	private static double[] valuesInOrder(double[] values, int[] ids) {
+		double[] sorted = new double[ids.length];
+		for(int i = 0; i < ids.length; i++) {
+			sorted[i] = values[ids[i]];
+		}
+		return sorted;
+	}
+
+}
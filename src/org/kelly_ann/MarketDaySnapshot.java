@@ -0,0 +1,249 @@
+package org.kelly_ann;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+public class MarketDaySnapshot {
+	// this class saves a parsed day to a compact binary file and loads it back much faster than re-parsing the CSV.
+	//
+	// the file layout (all numbers big-endian):
+	//   header:  int magic "BHAV", short format version, short flags, int ticker count, int body length
+	//   body:    the price columns, each one "count" doubles in ticker id order: open, high, low, close, prev close
+	//            then the symbol dictionary: for each ticker id its ticker and series as (short length + UTF-8 bytes),
+	//            the same encoding SymbolTable.save() uses. a missing name (e.g. a row with no series) has length -1
+	// the price columns are fixed-width, so reading them back is a bulk copy out of the memory-mapped file.
+	// if the FLAG_DEFLATED bit is set the body is compressed with java.util.zip's Deflater (the same zip machinery
+	// UnzipUtility uses), which makes the file smaller but means it has to be inflated instead of read in place.
+
+	// Note: all these member functions are static since they don't need object to be instantiated
+
+	public static final int MAGIC = 0x42484156; // "BHAV"
+	// version 1 wrote the names as ASCII and had no missing names, so it reads back the same way as version 2
+	public static final short FORMAT_VERSION = 2;
+	private static final short OLDEST_READABLE_VERSION = 1;
+	public static final short FLAG_DEFLATED = 1;
+
+	private static final int HEADER_SIZE = 4 + 2 + 2 + 4 + 4;
+
+	// the number of price columns stored per ticker
+	private static final int PRICE_COLUMNS = 5;
+
+
+	// write a day to a snapshot file, compressed or not
+	public static void write(OneDayMarketAction odma, String snapshotFile, boolean deflate) throws IOException {
+
+		MarketDay day = odma.getMarketDay();
+		int count = day.size();
+
+		// 1. lay out the body in memory: the price columns followed by the symbol dictionary
+		byte[][] tickerBytes = new byte[count][];
+		byte[][] seriesBytes = new byte[count][];
+		int dictionaryLength = 0;
+		for(int id = 0; id < count; id++) {
+			tickerBytes[id] = nameBytes(day.getTicker(id));
+			seriesBytes[id] = nameBytes(day.getSeries(id));
+			dictionaryLength += 2 + length(tickerBytes[id]) + 2 + length(seriesBytes[id]);
+		}
+
+		ByteBuffer body = ByteBuffer.allocate(count * PRICE_COLUMNS * 8 + dictionaryLength);
+		for(int id = 0; id < count; id++) {
+			body.putDouble(day.getOpen(id));
+		}
+		for(int id = 0; id < count; id++) {
+			body.putDouble(day.getHigh(id));
+		}
+		for(int id = 0; id < count; id++) {
+			body.putDouble(day.getLow(id));
+		}
+		for(int id = 0; id < count; id++) {
+			body.putDouble(day.getClose(id));
+		}
+		for(int id = 0; id < count; id++) {
+			body.putDouble(day.getPrevClose(id));
+		}
+		for(int id = 0; id < count; id++) {
+			putName(body, tickerBytes[id]);
+			putName(body, seriesBytes[id]);
+		}
+
+		// 2. write the header and then the body, through a Deflater if asked to
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapshotFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeShort(FORMAT_VERSION);
+			out.writeShort(deflate ? FLAG_DEFLATED : 0);
+			out.writeInt(count);
+			out.writeInt(body.capacity());
+
+			if(deflate) {
+				Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+				try {
+					OutputStream deflated = new DeflaterOutputStream(out, deflater);
+					deflated.write(body.array());
+					deflated.close(); // this finishes the compressed data and closes "out" too
+				}
+				finally {
+					// a Deflater we created ourselves isn't released by the stream, so free its native memory here
+					deflater.end();
+				}
+			}
+			else {
+				out.write(body.array());
+			}
+		}
+		finally {
+			out.close();
+		}
+
+	}
+
+
+	// read a snapshot file back into a day
+	// the file is memory-mapped, so an uncompressed snapshot is read without any extra copy of the file
+	public static OneDayMarketAction read(String snapshotFile) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(snapshotFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			// 1. check the header
+			if(mapped.remaining() < HEADER_SIZE || mapped.getInt() != MAGIC) {
+				throw new IOException("Not a market day snapshot: " + snapshotFile);
+			}
+			short version = mapped.getShort();
+			if(version < OLDEST_READABLE_VERSION || version > FORMAT_VERSION) {
+				throw new IOException("Unsupported snapshot version " + version + " in " + snapshotFile);
+			}
+			short flags = mapped.getShort();
+			int count = mapped.getInt();
+			int bodyLength = mapped.getInt();
+
+			// 2. get at the body, inflating it first if it was compressed
+			ByteBuffer body;
+			if((flags & FLAG_DEFLATED) != 0) {
+				body = inflate(mapped, bodyLength, snapshotFile);
+			}
+			else {
+				if(mapped.remaining() < bodyLength) {
+					throw new IOException("Truncated snapshot: " + snapshotFile);
+				}
+				body = mapped.slice();
+			}
+
+			// 3. bulk-copy the price columns, then rebuild the symbol dictionary
+			double[] open = readColumn(body, count);
+			double[] high = readColumn(body, count);
+			double[] low = readColumn(body, count);
+			double[] close = readColumn(body, count);
+			double[] prevClose = readColumn(body, count);
+
+			String[] tickers = new String[count];
+			String[] series = new String[count];
+			byte[] scratch = new byte[64];
+			for(int id = 0; id < count; id++) {
+				tickers[id] = readString(body, scratch);
+				series[id] = readSeries(body, scratch);
+			}
+
+			MarketDay day = MarketDay.fromColumns(tickers, series, open, high, low, close, prevClose);
+			return new OneDayMarketAction(day, snapshotFile);
+		}
+		finally {
+			raf.close();
+		}
+
+	}
+
+
+	private static ByteBuffer inflate(ByteBuffer compressed, int bodyLength, String snapshotFile) throws IOException {
+
+		byte[] input = new byte[compressed.remaining()];
+		compressed.get(input);
+
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(input);
+			byte[] output = new byte[bodyLength];
+			int length = 0;
+			while(length < bodyLength && !inflater.finished()) {
+				int inflated = inflater.inflate(output, length, bodyLength - length);
+				if(inflated == 0 && inflater.needsInput()) {
+					break;
+				}
+				length += inflated;
+			}
+			if(length != bodyLength) {
+				throw new IOException("Truncated snapshot: " + snapshotFile);
+			}
+			return ByteBuffer.wrap(output);
+		}
+		catch(DataFormatException e) {
+			throw new IOException("Corrupt snapshot: " + snapshotFile, e);
+		}
+		finally {
+			inflater.end();
+		}
+
+	}
+
+	private static double[] readColumn(ByteBuffer body, int count) {
+		double[] column = new double[count];
+		body.asDoubleBuffer().get(column);
+		body.position(body.position() + count * 8);
+		return column;
+	}
+
+	// a name's bytes, or null for a missing name
+	private static byte[] nameBytes(String name) {
+		return (name == null) ? null : name.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int length(byte[] nameBytes) {
+		return (nameBytes == null) ? 0 : nameBytes.length;
+	}
+
+	private static void putName(ByteBuffer body, byte[] nameBytes) {
+		if(nameBytes == null) {
+			body.putShort((short) -1);
+			return;
+		}
+		body.putShort((short) nameBytes.length);
+		body.put(nameBytes);
+	}
+
+	private static String readString(ByteBuffer body, byte[] scratch) {
+		int length = body.getShort();
+		if(length < 0) {
+			return null;
+		}
+		if(scratch.length < length) {
+			scratch = new byte[length];
+		}
+		body.get(scratch, 0, length);
+		return new String(scratch, 0, length, StandardCharsets.UTF_8);
+	}
+
+	// almost every row is an "EQ" so we hand back the same String instead of making a new one each time
+	private static String readSeries(ByteBuffer body, byte[] scratch) {
+		int start = body.position();
+		if(body.getShort(start) == 2 && BhavcopyParser.isEquitySeries(body, start + 2, start + 4)) {
+			body.position(start + 4);
+			return "EQ";
+		}
+		return readString(body, scratch);
+	}
+
+}
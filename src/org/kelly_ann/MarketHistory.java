@@ -0,0 +1,274 @@
+package org.kelly_ann;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class MarketHistory {
+	// this class collects many days of market action into one time series per ticker.
+	// each ticker's history is kept in contiguous, date-ordered primitive arrays (see TickerHistory below) so:
+	// 1. finding a ticker's history is one map lookup, O(1)
+	// 2. finding the days between two dates is a binary search over the ticker's sorted dates, O(log n)
+	// 3. walking a range is a plain loop over doubles, no objects per day
+	// the history can be filled from NSE bhavcopy days (OneDayMarketAction) and from Yahoo-style CSV files
+	// like resources/nlsnStockQuotes.csv (Date,Open,High,Low,Close,Volume,Adj Close).
+
+	// the series whose rows go into the history when none is given
+	public static final String DEFAULT_SERIES = "EQ";
+
+	private final Map<String, TickerHistory> tickers = new HashMap<>();
+
+
+	// add every ticker of one bhavcopy day to the history
+	// a bhavcopy has no volume or adjusted close, so volume is stored as NaN and the adjusted close is the close
+	public void addDay(LocalDate date, OneDayMarketAction odma) {
+		addDay(date, odma, DEFAULT_SERIES);
+	}
+
+	// the same, taking the rows of the given series only. the history has one price a day per ticker, so with a day
+	// that was loaded with all its series, an EQ and a BE row of one ticker would otherwise overwrite each other
+	public void addDay(LocalDate date, OneDayMarketAction odma, String series) {
+		MarketDay day = odma.getMarketDay();
+		int seriesSymbol = day.getSymbolTable().idOf(series);
+		if(seriesSymbol == SymbolTable.NO_SYMBOL) {
+			// no row has that series (rows without a series have NO_SYMBOL too, but aren't asked for)
+			return;
+		}
+		for(int id = 0; id < day.size(); id++) {
+			if(day.getSeriesSymbol(id) != seriesSymbol) {
+				continue;
+			}
+			historyFor(day.getTicker(id)).put(date, day.getOpen(id), day.getHigh(id), day.getLow(id),
+					day.getClose(id), Double.NaN, day.getClose(id));
+		}
+	}
+
+	// add a whole run of days, e.g. BackfillEngine.BackfillReport.getLoadedDays()
+	public void addDays(Map<LocalDate, OneDayMarketAction> days) {
+		for(Map.Entry<LocalDate, OneDayMarketAction> entry : days.entrySet()) {
+			addDay(entry.getKey(), entry.getValue());
+		}
+	}
+
+
+	// load a Yahoo-style quote file for one ticker (the file itself doesn't say which ticker it is)
+	// the format is: Date,Open,High,Low,Close,Volume,Adj Close with dates like 2015-12-01
+	// returns the number of rows loaded
+	public int loadYahooCsv(String ticker, String csvFile) throws IOException {
+
+		// read the rows first: Yahoo lists the newest date first, so we add them oldest first
+		// which lets every put() append at the end of the arrays instead of inserting at the front
+		List<String[]> rows = new ArrayList<>();
+		BufferedReader br = new BufferedReader(new FileReader(csvFile));
+		try {
+			String line = br.readLine(); // the header
+			while((line = br.readLine()) != null) {
+				if(!line.isEmpty()) {
+					rows.add(line.split(","));
+				}
+			}
+		}
+		finally {
+			br.close();
+		}
+
+		if(rows.size() > 1 && rows.get(0)[0].compareTo(rows.get(rows.size() - 1)[0]) > 0) {
+			Collections.reverse(rows);
+		}
+
+		TickerHistory history = historyFor(ticker);
+		for(String[] row : rows) {
+			history.put(LocalDate.parse(row[0]),
+					Double.parseDouble(row[1]),
+					Double.parseDouble(row[2]),
+					Double.parseDouble(row[3]),
+					Double.parseDouble(row[4]),
+					Double.parseDouble(row[5]),
+					Double.parseDouble(row[6]));
+		}
+		return rows.size();
+
+	}
+
+
+	// the whole history of one ticker, or null if we have never seen it
+	public TickerHistory getHistory(String ticker) {
+		return tickers.get(ticker);
+	}
+
+	public Set<String> getTickers() {
+		return Collections.unmodifiableSet(tickers.keySet());
+	}
+
+	private TickerHistory historyFor(String ticker) {
+		TickerHistory history = tickers.get(ticker);
+		if(history == null) {
+			history = new TickerHistory(ticker);
+			tickers.put(ticker, history);
+		}
+		return history;
+	}
+
+
+	// one ticker's history: parallel arrays indexed by position in date order
+	// dates are stored as LocalDate.toEpochDay() ints so the binary search compares primitives
+	public static class TickerHistory {
+
+		private static final int INITIAL_CAPACITY = 16;
+
+		private final String ticker;
+		private int[] dates = new int[INITIAL_CAPACITY];
+		private double[] open = new double[INITIAL_CAPACITY];
+		private double[] high = new double[INITIAL_CAPACITY];
+		private double[] low = new double[INITIAL_CAPACITY];
+		private double[] close = new double[INITIAL_CAPACITY];
+		private double[] volume = new double[INITIAL_CAPACITY];
+		private double[] adjClose = new double[INITIAL_CAPACITY];
+		private int size;
+
+		TickerHistory(String ticker) {
+			this.ticker = ticker;
+		}
+
+		// add one day's values, keeping the arrays in date order
+		// days usually arrive in order so this is normally an append. a date we already have is overwritten.
+		void put(LocalDate date, double open, double high, double low, double close, double volume, double adjClose) {
+
+			int day = (int) date.toEpochDay();
+			int index;
+			if(size == 0 || dates[size - 1] < day) {
+				index = size;
+				insertAt(index);
+			}
+			else {
+				index = Arrays.binarySearch(dates, 0, size, day);
+				if(index < 0) {
+					index = -index - 1;
+					insertAt(index);
+				}
+			}
+
+			this.dates[index] = day;
+			this.open[index] = open;
+			this.high[index] = high;
+			this.low[index] = low;
+			this.close[index] = close;
+			this.volume[index] = volume;
+			this.adjClose[index] = adjClose;
+
+		}
+
+		// make room at "index" by moving everything after it one place to the right
+		private void insertAt(int index) {
+			if(size == dates.length) {
+				int capacity = dates.length * 2;
+				dates = Arrays.copyOf(dates, capacity);
+				open = Arrays.copyOf(open, capacity);
+				high = Arrays.copyOf(high, capacity);
+				low = Arrays.copyOf(low, capacity);
+				close = Arrays.copyOf(close, capacity);
+				volume = Arrays.copyOf(volume, capacity);
+				adjClose = Arrays.copyOf(adjClose, capacity);
+			}
+			int moved = size - index;
+			if(moved > 0) {
+				System.arraycopy(dates, index, dates, index + 1, moved);
+				System.arraycopy(open, index, open, index + 1, moved);
+				System.arraycopy(high, index, high, index + 1, moved);
+				System.arraycopy(low, index, low, index + 1, moved);
+				System.arraycopy(close, index, close, index + 1, moved);
+				System.arraycopy(volume, index, volume, index + 1, moved);
+				System.arraycopy(adjClose, index, adjClose, index + 1, moved);
+			}
+			size++;
+		}
+
+
+		// the index of the first day on or after "date" (size() if there is none)
+		public int indexFrom(LocalDate date) {
+			int index = Arrays.binarySearch(dates, 0, size, (int) date.toEpochDay());
+			return index >= 0 ? index : -index - 1;
+		}
+
+		// the index just past the last day on or before "date", so [indexFrom(from), indexTo(to)) is the range from..to
+		public int indexTo(LocalDate date) {
+			int index = Arrays.binarySearch(dates, 0, size, (int) date.toEpochDay());
+			return index >= 0 ? index + 1 : -index - 1;
+		}
+
+		// the closes between two dates (both included), oldest first
+		public double[] getCloses(LocalDate from, LocalDate to) {
+			return slice(close, from, to);
+		}
+
+		// the adjusted closes between two dates (both included), oldest first
+		public double[] getAdjCloses(LocalDate from, LocalDate to) {
+			return slice(adjClose, from, to);
+		}
+
+		private double[] slice(double[] column, LocalDate from, LocalDate to) {
+			int start = indexFrom(from);
+			int end = indexTo(to);
+			return end > start ? Arrays.copyOfRange(column, start, end) : new double[0];
+		}
+
+
+		public String getTicker() {
+			return ticker;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public LocalDate getDate(int index) {
+			checkIndex(index);
+			return LocalDate.ofEpochDay(dates[index]);
+		}
+
+		public double getOpen(int index) {
+			checkIndex(index);
+			return open[index];
+		}
+
+		public double getHigh(int index) {
+			checkIndex(index);
+			return high[index];
+		}
+
+		public double getLow(int index) {
+			checkIndex(index);
+			return low[index];
+		}
+
+		public double getClose(int index) {
+			checkIndex(index);
+			return close[index];
+		}
+
+		public double getVolume(int index) {
+			checkIndex(index);
+			return volume[index];
+		}
+
+		public double getAdjClose(int index) {
+			checkIndex(index);
+			return adjClose[index];
+		}
+
+		private void checkIndex(int index) {
+			if(index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("Index " + index + " out of range, size=" + size);
+			}
+		}
+	}
+
+}
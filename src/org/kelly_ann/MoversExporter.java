@@ -0,0 +1,502 @@
+package org.kelly_ann;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.List;
+
+public class MoversExporter {
+	// this class writes movers (or any other rows of names, numbers and dates) as CSV or JSON for systems that just want
+	// the list and not a spreadsheet. it is built to be cheap per row:
+	// 1. every value is written straight into one reusable byte[] which goes out through a channel (e.g. a FileChannel)
+	//    whenever it fills up, so there is no String, StringBuilder or PrintStream per row
+	// 2. doubles are formatted here from their digits instead of through String.valueOf(): the value is rounded to
+	//    a fixed number of decimals (8 unless setFractionDigits() says otherwise) and trailing zeros are dropped.
+	//    prices only have 2 decimals, so they come out exactly as the exchange published them. anything with more
+	//    decimals than that is rounded, not written in full: 0.30000000000000004 comes out as 0.3.
+	//    only values too big or too small to round that way (never the case for prices or % changes) go through
+	//    Double.toString()
+	// 3. the column names are turned into bytes once, up front
+	//
+	// usage: give the column names, then for each row call field() once per column in that order and then endRow().
+	// a CSV gets a header line with the column names, a JSON file is an array with one object per row.
+	// the CSV header is only written in front of the first row, so a channel that never gets a row (e.g. the console
+	// with nothing to print) gets no header either. a file from toFile() always has its header, even with no rows.
+	// NaN (e.g. a % change with no prevClose) is an empty field in a CSV and null in JSON.
+
+	public enum Format {
+		CSV,
+		JSON
+	}
+
+	// the columns written by the helpers below
+	static final String[] MOVER_COLUMNS = {"ticker", "series", "close", "prevClose", "change"};
+	static final String[] DAY_MOVER_COLUMNS = {"day", "ticker", "series", "close", "prevClose", "change"};
+	static final String[] MULTI_DAY_COLUMNS = {"ticker", "compoundedReturn", "daysTraded", "daysInTopGainers", "daysInTopLosers"};
+	static final String[] RANKING_COLUMNS = {"rank", "ticker", "day", "close", "prevClose", "change"};
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// room for the longest number or date we write in one go (a long is at most 20 characters)
+	private static final int MAX_NUMBER_BYTES = 32;
+
+	private static final long[] POWERS_OF_TEN = new long[19];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for(int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	// the bits of JSON that go around the values
+	private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+	private static final byte[] FIRST_ROW = {'\n', '{'};
+	private static final byte[] ROW_SEPARATOR = {',', '\n', '{'};
+
+	private final WritableByteChannel channel;
+	private final Format format;
+	private final int columns;
+
+	// what goes in front of each value: the CSV header's names, or "key": for JSON
+	private final byte[][] keys;
+
+	// the reusable buffer, and a ByteBuffer view of it for the channel
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private final ByteBuffer channelBuffer = ByteBuffer.wrap(buffer);
+	private int position;
+
+	// scratch space for the digits of one number, filled from the right
+	private final byte[] digits = new byte[20];
+
+	private int fractionDigits = 8;
+	private int column;
+	private long rows;
+	private boolean headerWritten;
+
+	// only set for exporters that write a file of their own, see toFile()
+	private File temp;
+	private File target;
+
+
+	// write to a channel the caller owns (e.g. Channels.newChannel(System.out)), close() leaves it open
+	public MoversExporter(WritableByteChannel channel, Format format, String... columnNames) throws IOException {
+		this.channel = channel;
+		this.format = format;
+		this.columns = columnNames.length;
+		this.keys = new byte[columns][];
+		for(int i = 0; i < columns; i++) {
+			keys[i] = (format == Format.JSON)
+					? ("\"" + columnNames[i] + "\":").getBytes(StandardCharsets.UTF_8)
+					: columnNames[i].getBytes(StandardCharsets.UTF_8);
+		}
+
+		// the start of the array. a CSV's header waits for the first row, see writeHeader()
+		if(format == Format.JSON) {
+			putByte((byte) '[');
+		}
+	}
+
+	// write to a file of our own: it is written next to its final name and renamed by close(), so a reader never
+	// sees half a file
+	public static MoversExporter toFile(String file, Format format, String... columnNames) throws IOException {
+		File target = new File(file);
+		File temp = new File(target.getPath() + ".tmp");
+		FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		MoversExporter exporter = new MoversExporter(channel, format, columnNames);
+		exporter.temp = temp;
+		exporter.target = target;
+		return exporter;
+	}
+
+
+	// how many decimals doubles are rounded to (0 to 15)
+	public void setFractionDigits(int fractionDigits) {
+		if(fractionDigits < 0 || fractionDigits > 15) {
+			throw new IllegalArgumentException("fractionDigits must be between 0 and 15: " + fractionDigits);
+		}
+		this.fractionDigits = fractionDigits;
+	}
+
+	// the number of rows written so far
+	public long getRows() {
+		return rows;
+	}
+
+
+	// the next column's value
+	public void field(String value) {
+		startField();
+		if(value == null) {
+			if(format == Format.JSON) {
+				putBytes(NULL);
+			}
+			return;
+		}
+		if(format == Format.JSON) {
+			putByte((byte) '"');
+			putText(value, true);
+			putByte((byte) '"');
+		}
+		else if(needsQuotes(value)) {
+			putByte((byte) '"');
+			putText(value, false);
+			putByte((byte) '"');
+		}
+		else {
+			putText(value, false);
+		}
+	}
+
+	public void field(double value) {
+		startField();
+		if(Double.isNaN(value) || Double.isInfinite(value)) {
+			if(format == Format.JSON) {
+				putBytes(NULL);
+			}
+			return;
+		}
+		putDouble(value);
+	}
+
+	public void field(long value) {
+		startField();
+		ensure(MAX_NUMBER_BYTES);
+		putLong(value);
+	}
+
+	// a day as yyyy-MM-dd
+	public void field(LocalDate day) {
+		startField();
+		if(day == null) {
+			if(format == Format.JSON) {
+				putBytes(NULL);
+			}
+			return;
+		}
+		boolean quoted = format == Format.JSON;
+		ensure(MAX_NUMBER_BYTES);
+		if(quoted) {
+			buffer[position++] = '"';
+		}
+		putPadded(day.getYear(), 4);
+		buffer[position++] = '-';
+		putPadded(day.getMonthValue(), 2);
+		buffer[position++] = '-';
+		putPadded(day.getDayOfMonth(), 2);
+		if(quoted) {
+			buffer[position++] = '"';
+		}
+	}
+
+	// finish the row, every column must have had its field()
+	public void endRow() {
+		if(column != columns) {
+			throw new IllegalStateException("Row has " + column + " fields, expected " + columns);
+		}
+		putByte((byte) (format == Format.JSON ? '}' : '\n'));
+		column = 0;
+		rows++;
+	}
+
+
+	// one OneTickerOneDay as a MOVER_COLUMNS row
+	public void writeMover(OneDayMarketAction.OneTickerOneDay otod) {
+		field(otod.getTicker());
+		field(otod.getSeries());
+		field(otod.getClose());
+		field(otod.getPrevClose());
+		field(otod.getPercentageChange());
+		endRow();
+	}
+
+	// push what is in the buffer out to the channel
+	public void flush() throws IOException {
+		channelBuffer.limit(position);
+		channelBuffer.position(0);
+		while(channelBuffer.hasRemaining()) {
+			channel.write(channelBuffer);
+		}
+		position = 0;
+	}
+
+	// finish the output and flush it. a file from toFile() is closed and renamed to its final name
+	public void close() throws IOException {
+		if(format == Format.CSV && target != null) {
+			writeHeader();
+		}
+		if(format == Format.JSON) {
+			putBytes((rows > 0 ? "\n]\n" : "]\n").getBytes(StandardCharsets.US_ASCII));
+		}
+		if(target == null) {
+			flush();
+			return;
+		}
+		try {
+			flush();
+		}
+		finally {
+			channel.close();
+		}
+		if(!temp.renameTo(target)) {
+			target.delete();
+			if(!temp.renameTo(target)) {
+				throw new IOException("Could not replace " + target);
+			}
+		}
+	}
+
+
+	// write a list of movers, e.g. getTopMovers() or getSortedMovers(), in its order
+	public static long writeMovers(List<OneDayMarketAction.OneTickerOneDay> movers, String file, Format format) throws IOException {
+		MoversExporter exporter = toFile(file, format, MOVER_COLUMNS);
+		for(OneDayMarketAction.OneTickerOneDay otod : movers) {
+			exporter.writeMover(otod);
+		}
+		return finish(exporter);
+	}
+
+	// write every mover of the day, from the biggest gain to the biggest loss (tickers with no % change are left out)
+	// the rows are read straight from the day's columns, so there is no OneTickerOneDay per row
+	public static long writeDay(OneDayMarketAction odma, String file, Format format) throws IOException {
+		MarketDay day = odma.getMarketDay();
+		double[] changes = day.getPercentageChanges();
+		MoversExporter exporter = toFile(file, format, MOVER_COLUMNS);
+		for(int id : TopKSelector.largest(changes, changes.length, changes.length)) {
+			exporter.field(day.getTicker(id));
+			exporter.field(day.getSeries(id));
+			exporter.field(day.getClose(id));
+			exporter.field(day.getPrevClose(id));
+			exporter.field(changes[id]);
+			exporter.endRow();
+		}
+		return finish(exporter);
+	}
+
+	// write a multi-day result (see MultiDayMovers.getTopMovers())
+	public static long writeMultiDayMovers(List<MultiDayMovers.Mover> movers, String file, Format format) throws IOException {
+		MoversExporter exporter = toFile(file, format, MULTI_DAY_COLUMNS);
+		for(MultiDayMovers.Mover mover : movers) {
+			exporter.field(mover.getTicker());
+			exporter.field(mover.getCompoundedReturn());
+			exporter.field(mover.getDaysTraded());
+			exporter.field(mover.getDaysInTopGainers());
+			exporter.field(mover.getDaysInTopLosers());
+			exporter.endRow();
+		}
+		return finish(exporter);
+	}
+
+	// stream a whole out-of-core ranking (see ExternalMoversSort) as the merge hands it over
+	public static long writeRanking(ExternalMoversSort ranking, String file, Format format) throws IOException {
+		final MoversExporter exporter = toFile(file, format, RANKING_COLUMNS);
+		ranking.sort(new ExternalMoversSort.MoveHandler() {
+			@Override
+			public void onMove(long rank, String ticker, LocalDate day, double close, double prevClose, double change) {
+				exporter.field(rank);
+				exporter.field(ticker);
+				exporter.field(day);
+				exporter.field(close);
+				exporter.field(prevClose);
+				exporter.field(change);
+				exporter.endRow();
+			}
+		});
+		return finish(exporter);
+	}
+
+	private static long finish(MoversExporter exporter) throws IOException {
+		exporter.close();
+		PipelineMetrics.add(PipelineMetrics.Counter.ROWS_EXPORTED, exporter.getRows());
+		return exporter.getRows();
+	}
+
+
+	// the separator (or the start of the row's object) and, for JSON, the key
+	private void startField() {
+		if(column == columns) {
+			throw new IllegalStateException("Row already has all " + columns + " fields, call endRow()");
+		}
+		if(format == Format.JSON) {
+			if(column == 0) {
+				putBytes(rows > 0 ? ROW_SEPARATOR : FIRST_ROW);
+			}
+			else {
+				putByte((byte) ',');
+			}
+			putBytes(keys[column]);
+		}
+		else if(column > 0) {
+			putByte((byte) ',');
+		}
+		else {
+			writeHeader();
+		}
+		column++;
+	}
+
+	// the CSV header line, once
+	private void writeHeader() {
+		if(headerWritten) {
+			return;
+		}
+		headerWritten = true;
+		for(int i = 0; i < columns; i++) {
+			if(i > 0) {
+				putByte((byte) ',');
+			}
+			putBytes(keys[i]);
+		}
+		putByte((byte) '\n');
+	}
+
+	// the value rounded to fractionDigits decimals, with the trailing zeros dropped
+	private void putDouble(double value) {
+		long scale = POWERS_OF_TEN[fractionDigits];
+		double scaled = value * scale;
+		if(Math.abs(scaled) >= 1e18 || (value != 0 && Math.abs(scaled) < 1)) {
+			// too big for a long, or so small it would round to 0: the rare path
+			putText(Double.toString(value), false);
+			return;
+		}
+		long rounded = Math.round(scaled);
+		ensure(MAX_NUMBER_BYTES + fractionDigits);
+		if(rounded < 0) {
+			buffer[position++] = '-';
+			rounded = -rounded;
+		}
+		putLong(rounded / scale);
+		long fraction = rounded % scale;
+		if(fraction != 0) {
+			int length = fractionDigits;
+			while(fraction % 10 == 0) {
+				fraction /= 10;
+				length--;
+			}
+			buffer[position++] = '.';
+			putPadded(fraction, length);
+		}
+	}
+
+	// a long's digits (the caller has made room)
+	private void putLong(long value) {
+		if(value == Long.MIN_VALUE) {
+			putText(Long.toString(value), false);
+			return;
+		}
+		if(value < 0) {
+			buffer[position++] = '-';
+			value = -value;
+		}
+		int i = digits.length;
+		do {
+			digits[--i] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while(value != 0);
+		System.arraycopy(digits, i, buffer, position, digits.length - i);
+		position += digits.length - i;
+	}
+
+	// a non-negative number with leading zeros up to "length" digits (the caller has made room)
+	private void putPadded(long value, int length) {
+		for(int i = position + length - 1; i >= position; i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		position += length;
+	}
+
+	// the characters of a String, ASCII byte by byte, escaped for a JSON string if asked
+	private void putText(String value, boolean jsonEscape) {
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c >= 0x80) {
+				// not plain ASCII (the exchange's files never are), encode it properly
+				putEncoded(value.substring(i), jsonEscape);
+				return;
+			}
+			if(jsonEscape && (c == '"' || c == '\\' || c < 0x20)) {
+				putEscaped(c);
+			}
+			else if(!jsonEscape && c == '"') {
+				// a quote inside a quoted CSV field is doubled
+				putByte((byte) '"');
+				putByte((byte) '"');
+			}
+			else {
+				putByte((byte) c);
+			}
+		}
+	}
+
+	private void putEncoded(String value, boolean jsonEscape) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		for(byte b : bytes) {
+			if(b >= 0 && b < 0x80) {
+				putText(String.valueOf((char) b), jsonEscape);
+			}
+			else {
+				putByte(b);
+			}
+		}
+	}
+
+	private void putEscaped(char c) {
+		ensure(6);
+		buffer[position++] = '\\';
+		switch(c) {
+			case '"': buffer[position++] = '"'; break;
+			case '\\': buffer[position++] = '\\'; break;
+			case '\n': buffer[position++] = 'n'; break;
+			case '\r': buffer[position++] = 'r'; break;
+			case '\t': buffer[position++] = 't'; break;
+			default:
+				buffer[position++] = 'u';
+				putPadded(0, 2);
+				buffer[position++] = (byte) Character.forDigit(c >> 4, 16);
+				buffer[position++] = (byte) Character.forDigit(c & 0xF, 16);
+		}
+	}
+
+	// a CSV field with a separator, a quote or a line break in it has to be quoted
+	private static boolean needsQuotes(String value) {
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == ',' || c == '"' || c == '\n' || c == '\r') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void putBytes(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buffer, position, bytes.length);
+		position += bytes.length;
+	}
+
+	private void putByte(byte b) {
+		ensure(1);
+		buffer[position++] = b;
+	}
+
+	// make room for "needed" more bytes, sending the buffer out if it is too full
+	// the channel's IOException is passed on unchecked so field() stays easy to call from a MoveHandler
+	private void ensure(int needed) {
+		if(position + needed > buffer.length) {
+			try {
+				flush();
+			}
+			catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+}
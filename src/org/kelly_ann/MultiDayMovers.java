@@ -0,0 +1,300 @@
+package org.kelly_ann;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class MultiDayMovers {
+	// this class ranks tickers over many trading days (a week, a month, a quarter, years...) instead of just one:
+	// 1. the compounded return of each ticker: (1 + r1) * (1 + r2) * ... - 1 over the days it traded,
+	//    where r is the day's (close - prevClose) / prevClose
+	// 2. how many days each ticker was in that day's top-K gainers, and in its top-K losers
+	// 3. the top movers over the whole period, picked with TopKSelector so nothing is ever fully sorted
+	//
+	// the days are added up with fork/join: the list of days is split in halves until each piece is small, every piece
+	// is added up into its own primitive arrays (indexed by the ticker's SymbolTable id), and the halves are then
+	// combined by multiplying the growth factors and adding the counts. so a multi-year range uses every core.
+	// all the days have to share one SymbolTable (the global one, unless you gave them your own).
+	// the results are by ticker, so only the rows of one series are counted ("EQ" unless you ask for another): a day
+	// loaded with all its series can have an EQ and a BE row for the same ticker, and both would be compounded.
+
+	// the series counted when none is given
+	public static final String DEFAULT_SERIES = "EQ";
+
+	// how many days one fork/join leaf adds up on its own before it is worth splitting further
+	private static final int DAYS_PER_TASK = 4;
+
+	private final SymbolTable symbols;
+	private final int dayCount;
+	private final int dailyK;
+
+	// all indexed by symbol id
+	private final double[] compoundedReturns;	// NaN for symbols that never traded with a usable prevClose
+	private final int[] daysTraded;
+	private final int[] daysInTopGainers;
+	private final int[] daysInTopLosers;
+
+
+	private MultiDayMovers(SymbolTable symbols, int dayCount, int dailyK, Totals totals) {
+		this.symbols = symbols;
+		this.dayCount = dayCount;
+		this.dailyK = dailyK;
+		this.compoundedReturns = new double[totals.growth.length];
+		for(int symbol = 0; symbol < compoundedReturns.length; symbol++) {
+			compoundedReturns[symbol] = (totals.daysTraded[symbol] > 0) ? totals.growth[symbol] - 1 : Double.NaN;
+		}
+		this.daysTraded = totals.daysTraded;
+		this.daysInTopGainers = totals.daysInTopGainers;
+		this.daysInTopLosers = totals.daysInTopLosers;
+	}
+
+
+	// add up every day in the map between "from" and "to" (both included), e.g. BackfillReport.getLoadedDays()
+	public static MultiDayMovers aggregate(SortedMap<LocalDate, OneDayMarketAction> days, LocalDate from, LocalDate to, int dailyK) {
+		return aggregate(days.subMap(from, to.plusDays(1)).values(), dailyK, ForkJoinPool.commonPool());
+	}
+
+	// add up all the given days. dailyK is the size of the daily top lists whose appearances are counted
+	public static MultiDayMovers aggregate(Collection<OneDayMarketAction> days, int dailyK) {
+		return aggregate(days, dailyK, ForkJoinPool.commonPool());
+	}
+
+	public static MultiDayMovers aggregate(Collection<OneDayMarketAction> days, int dailyK, ForkJoinPool pool) {
+		return aggregate(days, DEFAULT_SERIES, dailyK, pool);
+	}
+
+	// the same, counting the rows of the given series only
+	public static MultiDayMovers aggregate(Collection<OneDayMarketAction> days, String series, int dailyK, ForkJoinPool pool) {
+
+		if(dailyK < 0) {
+			throw new IllegalArgumentException("dailyK must not be negative: " + dailyK);
+		}
+
+		// 1. get at the columns of every day and check they all use the same symbol ids
+		MarketDay[] marketDays = new MarketDay[days.size()];
+		int i = 0;
+		for(OneDayMarketAction odma : days) {
+			marketDays[i++] = odma.getMarketDay();
+		}
+		SymbolTable symbols = (marketDays.length > 0) ? marketDays[0].getSymbolTable() : SymbolTable.global();
+		for(MarketDay day : marketDays) {
+			if(day.getSymbolTable() != symbols) {
+				throw new IllegalArgumentException("All days must share one SymbolTable");
+			}
+		}
+
+		// 2. add them up in parallel
+		// the arrays are sized for the symbols known now, the days are already loaded so theirs are all in there
+		// a series no day has gets NO_SYMBOL, and then no row is taken (not even rows without a series, whose
+		// series symbol is NO_SYMBOL too)
+		int symbolCount = symbols.size();
+		int seriesSymbol = symbols.idOf(series);
+		Totals totals = pool.invoke(new AggregateTask(marketDays, 0, marketDays.length, symbolCount, seriesSymbol, dailyK));
+		return new MultiDayMovers(symbols, marketDays.length, dailyK, totals);
+
+	}
+
+
+	// the k tickers with the biggest compounded gains (or losses) over the period, biggest first
+	public List<Mover> getTopMovers(int k, OneDayMarketAction.MoveDirection direction) {
+		int[] top = (direction == OneDayMarketAction.MoveDirection.GAINERS)
+				? TopKSelector.largest(compoundedReturns, compoundedReturns.length, k)
+				: TopKSelector.smallest(compoundedReturns, compoundedReturns.length, k);
+		return toMovers(top);
+	}
+
+	// the k tickers that were most often in the daily top-K list of the given direction, most days first
+	public List<Mover> getMostFrequentMovers(int k, OneDayMarketAction.MoveDirection direction) {
+		int[] counts = (direction == OneDayMarketAction.MoveDirection.GAINERS) ? daysInTopGainers : daysInTopLosers;
+		double[] days = new double[counts.length];
+		for(int symbol = 0; symbol < counts.length; symbol++) {
+			// a ticker that was never in the list isn't a frequent mover
+			days[symbol] = (counts[symbol] > 0) ? counts[symbol] : Double.NaN;
+		}
+		return toMovers(TopKSelector.largest(days, days.length, k));
+	}
+
+	private List<Mover> toMovers(int[] symbolIds) {
+		List<Mover> movers = new ArrayList<>(symbolIds.length);
+		for(int symbol : symbolIds) {
+			movers.add(new Mover(symbols.getName(symbol), compoundedReturns[symbol], daysTraded[symbol],
+					daysInTopGainers[symbol], daysInTopLosers[symbol]));
+		}
+		return movers;
+	}
+
+	// one ticker's numbers over the period, or null if it never traded in it
+	public Mover getMover(String ticker) {
+		int symbol = symbols.idOf(ticker);
+		if(symbol == SymbolTable.NO_SYMBOL || symbol >= daysTraded.length || daysTraded[symbol] == 0) {
+			return null;
+		}
+		return new Mover(ticker, compoundedReturns[symbol], daysTraded[symbol], daysInTopGainers[symbol], daysInTopLosers[symbol]);
+	}
+
+	// the number of days that were added up
+	public int getDayCount() {
+		return dayCount;
+	}
+
+	public int getDailyK() {
+		return dailyK;
+	}
+
+
+	// one ticker's result
+	public static class Mover {
+
+		private final String ticker;
+		private final double compoundedReturn;
+		private final int daysTraded;
+		private final int daysInTopGainers;
+		private final int daysInTopLosers;
+
+		Mover(String ticker, double compoundedReturn, int daysTraded, int daysInTopGainers, int daysInTopLosers) {
+			this.ticker = ticker;
+			this.compoundedReturn = compoundedReturn;
+			this.daysTraded = daysTraded;
+			this.daysInTopGainers = daysInTopGainers;
+			this.daysInTopLosers = daysInTopLosers;
+		}
+
+		public String getTicker() {
+			return ticker;
+		}
+
+		// e.g. 0.25 for +25% over the period
+		public double getCompoundedReturn() {
+			return compoundedReturn;
+		}
+
+		// the days it traded with a usable prevClose
+		public int getDaysTraded() {
+			return daysTraded;
+		}
+
+		public int getDaysInTopGainers() {
+			return daysInTopGainers;
+		}
+
+		public int getDaysInTopLosers() {
+			return daysInTopLosers;
+		}
+
+		@Override
+		public String toString() {
+			return "Ticker=" + ticker + ", Moved by " + compoundedReturn * 100 + "% over " + daysTraded + " days"
+					+ ", top gainer " + daysInTopGainers + "x, top loser " + daysInTopLosers + "x";
+		}
+	}
+
+
+	// what one fork/join task hands back: running totals per symbol id
+	private static final class Totals {
+
+		final double[] growth;
+		final int[] daysTraded;
+		final int[] daysInTopGainers;
+		final int[] daysInTopLosers;
+
+		Totals(int symbolCount) {
+			growth = new double[symbolCount];
+			Arrays.fill(growth, 1.0);
+			daysTraded = new int[symbolCount];
+			daysInTopGainers = new int[symbolCount];
+			daysInTopLosers = new int[symbolCount];
+		}
+
+		// fold another task's totals into these
+		void combine(Totals other) {
+			for(int symbol = 0; symbol < growth.length; symbol++) {
+				growth[symbol] *= other.growth[symbol];
+				daysTraded[symbol] += other.daysTraded[symbol];
+				daysInTopGainers[symbol] += other.daysInTopGainers[symbol];
+				daysInTopLosers[symbol] += other.daysInTopLosers[symbol];
+			}
+		}
+	}
+
+	// adds up days[from, to): small ranges directly, bigger ones split in two halves that run in parallel
+	private static final class AggregateTask extends RecursiveTask<Totals> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final MarketDay[] days;
+		private final int from;
+		private final int to;
+		private final int symbolCount;
+		private final int seriesSymbol;
+		private final int dailyK;
+
+		AggregateTask(MarketDay[] days, int from, int to, int symbolCount, int seriesSymbol, int dailyK) {
+			this.days = days;
+			this.from = from;
+			this.to = to;
+			this.symbolCount = symbolCount;
+			this.seriesSymbol = seriesSymbol;
+			this.dailyK = dailyK;
+		}
+
+		@Override
+		protected Totals compute() {
+
+			if(to - from > DAYS_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				AggregateTask left = new AggregateTask(days, from, middle, symbolCount, seriesSymbol, dailyK);
+				AggregateTask right = new AggregateTask(days, middle, to, symbolCount, seriesSymbol, dailyK);
+				left.fork();
+				Totals totals = right.compute();
+				totals.combine(left.join());
+				return totals;
+			}
+
+			Totals totals = new Totals(symbolCount);
+			for(int d = from; d < to; d++) {
+				addDay(days[d], totals);
+			}
+			return totals;
+
+		}
+
+		private void addDay(MarketDay day, Totals totals) {
+
+			// rows of the other series are left out as NaN, so they are neither compounded nor picked for the top lists
+			double[] changes = day.getPercentageChanges();
+			for(int id = 0; id < changes.length; id++) {
+				if(seriesSymbol == SymbolTable.NO_SYMBOL || day.getSeriesSymbol(id) != seriesSymbol) {
+					changes[id] = Double.NaN;
+				}
+			}
+			for(int id = 0; id < changes.length; id++) {
+				int symbol = day.getTickerSymbol(id);
+				if(symbol < symbolCount && !Double.isNaN(changes[id])) {
+					totals.growth[symbol] *= 1 + changes[id];
+					totals.daysTraded[symbol]++;
+				}
+			}
+
+			// the day's own top-K lists, picked with the same rules as OneDayMarketAction.getTopMovers()
+			for(int id : TopKSelector.largest(changes, changes.length, dailyK)) {
+				int symbol = day.getTickerSymbol(id);
+				if(symbol < symbolCount) {
+					totals.daysInTopGainers[symbol]++;
+				}
+			}
+			for(int id : TopKSelector.smallest(changes, changes.length, dailyK)) {
+				int symbol = day.getTickerSymbol(id);
+				if(symbol < symbolCount) {
+					totals.daysInTopLosers[symbol]++;
+				}
+			}
+
+		}
+	}
+
+}
@@ -3,12 +3,14 @@ package org.kelly_ann;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 // this is the outer class
 public class OneDayMarketAction {
@@ -16,116 +18,127 @@ public class OneDayMarketAction {
 	// the inner class will be a static nested class which represents one stock (out of many) on a given day.
 	
 	// this is the static nested INNER class
+	// note: it no longer holds the values itself, it is a lightweight "flyweight" view of one row of a MarketDay
+	// so a day with ~2000 tickers is a handful of primitive arrays rather than ~2000 objects with their own fields
 	public static class OneTickerOneDay {
 		
-		private String ticker;
-		private String series;
-		private double open;
-		private double close;
-		private double high;
-		private double low;
-		private double prevClose;
+		// the columnar store this ticker lives in and the ticker's id (row) in it
+		private final MarketDay day;
+		private final int id;
 		
 		public OneTickerOneDay(String[] oneQuote) {
-			setTicker(oneQuote[0]);
-			setSeries(oneQuote[1]);
-			setOpen(Double.parseDouble(oneQuote[2]));
-			setClose(Double.parseDouble(oneQuote[3]));
-			setHigh(Double.parseDouble(oneQuote[4]));
-			setLow(Double.parseDouble(oneQuote[5]));
-			setPrevClose(Double.parseDouble(oneQuote[6]));
+			this(oneQuote[0], oneQuote[1], Double.parseDouble(oneQuote[2]), Double.parseDouble(oneQuote[3]),
+					Double.parseDouble(oneQuote[4]), Double.parseDouble(oneQuote[5]), Double.parseDouble(oneQuote[6]));
+			
+		}
+		
+		// this constructor takes the already-parsed values
+		// a ticker created on its own (outside of a OneDayMarketAction) gets a one-row MarketDay of its own
+		public OneTickerOneDay(String ticker, String series, double open, double close, double high, double low, double prevClose) {
+			this.day = new MarketDay(1);
+			this.id = day.put(ticker, series, open, close, high, low, prevClose);
+			
+		}
+		
+		// this constructor creates a view of a ticker that is already stored in a day
+		OneTickerOneDay(MarketDay day, int id) {
+			this.day = day;
+			this.id = id;
 			
 		}
 		
 		public double getPercentageChange() {
-			if(this.getPrevClose() != 0) {
-				return(this.getClose() - this.getPrevClose()) / this.getPrevClose();
-			}
-			return Double.NaN;
+			return day.getPercentageChange(id);
+		}
+		
+		
+		public int getId() {
+			
+			return id;
 		}
 
 		
 		public String getTicker() {
 			
-			return ticker;
+			return day.getTicker(id);
 		}
 
 		
 		public void setTicker(String ticker) {
 			
-			this.ticker = ticker;
+			day.setTicker(id, ticker);
 		}
 
 		
 		public String getSeries() {
 			
-			return series;
+			return day.getSeries(id);
 		}
 
 		
 		public void setSeries(String series) {
 			
-			this.series = series;
+			day.setSeries(id, series);
 		}
 
 		
 		public double getOpen() {
 			
-			return open;
+			return day.getOpen(id);
 		}
 
 		
 		public void setOpen(double open) {
 			
-			this.open = open;
+			day.setOpen(id, open);
 		}
 
 		
 		public double getClose() {
 			
-			return close;
+			return day.getClose(id);
 		}
 
 		
 		public void setClose(double close) {
 			
-			this.close = close;
+			day.setClose(id, close);
 		}
 
 		
 		public double getHigh() {
 			
-			return high;
+			return day.getHigh(id);
 		}
 
 		
 		public void setHigh(double high) {
 			
-			this.high = high;
+			day.setHigh(id, high);
 		}
 
 		
 		public double getLow() {
 			
-			return low;
+			return day.getLow(id);
 		}
 
 		
 		public void setLow(double low) {
 			
-			this.low = low;
+			day.setLow(id, low);
 		}
 
 		
 		public double getPrevClose() {
 			
-			return prevClose;
+			return day.getPrevClose(id);
 		}
 
 		
 		public void setPrevClose(double prevClose) {
 			
-			this.prevClose = prevClose;
+			day.setPrevClose(id, prevClose);
 		}
 		
 		
@@ -133,25 +146,161 @@ public class OneDayMarketAction {
 	
 	
 	
+	// roughly how many EQ tickers trade on the NSE in one day, used to size the columns up front
+	private static final int EXPECTED_TICKERS_PER_DAY = 2048;
+	
 	//internally we want to be able to say 'please give me the market action today for ticker=XYZ'
-	// the map will enable us to do this via it's key-value pair
+	// the MarketDay's symbol dictionary will enable us to do this by turning the ticker into an id
 	// this variable is used in the constructor and the getSortedMovers() methods
-	private Map<String, OneTickerOneDay> mapOfTickers = new HashMap<>();
+	private MarketDay marketDay = new MarketDay(EXPECTED_TICKERS_PER_DAY);
+	
+	// which end of the movers list getTopMovers() should return
+	public enum MoveDirection {
+		GAINERS,	// the biggest positive % changes, biggest first
+		LOSERS		// the biggest negative % changes, biggest drop first
+	}
+	
+	// getTopMovers() remembers its last answer for each direction so asking again (e.g. from ExcelWriter) is free
+	// a cached answer is ignored once the marketDay's version changes, i.e. a ticker's values were changed
+	// note: each answer is one immutable object in a volatile field, so reader threads sharing a day (see
+	// ConcurrentMarketAction) always see a whole answer, at worst two of them compute the same answer at once
+	private volatile MoversCache cachedGainers;
+	private volatile MoversCache cachedLosers;
+	
+	// one cached getTopMovers() answer
+	private static final class MoversCache {
+		
+		// the marketDay version the answer was computed from
+		private final int version;
+		
+		// the k the answer was computed for. if fewer ids came back than that,
+		// the cache already holds every mover there is and a bigger k can't add any
+		private final int requested;
+		
+		private final int[] ids;
+		
+		MoversCache(int version, int requested, int[] ids) {
+			this.version = version;
+			this.requested = requested;
+			this.ids = ids;
+		}
+		
+		boolean answers(int version, int k) {
+			return this.version == version && (k <= requested || ids.length < requested);
+		}
+	}
+	
+	// only set in intraday mode, see enableLiveRanking()
+	private LiveMoversRanking liveRanking;
 	
 	// the CSV file name that this action came from
 	@SuppressWarnings("unused")
 	private String fileName;
 	
+	// what happened while the file was read (rows loaded, skipped, rejected...)
+	private ParseReport parseReport;
+	
+	// false = only the EQ rows of the file are kept (the original behaviour), true = the rows of every series
+	private boolean allSeries;
+	
+	// the secondary indexes for filter queries, built on first use and rebuilt once the day changes (see getIndex())
+	private volatile MarketDayIndex index;
+	
 	// this is the constructor for the OnDayMarketAction outer class
 	// it sets up the tickers by reading in from a CSV file
 	public OneDayMarketAction(String csvFile) {
-		// this constructor will:
+		this(csvFile, false);
+	}
+	
+	// this constructor lets the caller pick the memory-mapped BhavcopyParser instead of the BufferedReader below
+	// both give the same tickers, the mapped one just avoids creating a String[] and several Strings per row
+	public OneDayMarketAction(String csvFile, boolean useMemoryMappedParser) {
+		this(csvFile, useMemoryMappedParser, new RowErrorPolicy());
+	}
+	
+	// this constructor also says what to do with malformed rows (see RowErrorPolicy)
+	// a bad row no longer stops the read: it is skipped, counted and optionally quarantined, and the rest of the file
+	// is still loaded unless the policy's error budget runs out. getParseReport() says how it went.
+	public OneDayMarketAction(String csvFile, boolean useMemoryMappedParser, RowErrorPolicy policy) {
+		this(csvFile, useMemoryMappedParser, policy, false);
+	}
+	
+	// this constructor can also keep the rows of every series (BE, BZ, SM...) and not just the EQ ones
+	// a ticker that trades in two series then has two rows, see getOneTicker(ticker, series) and getIndex()
+	public OneDayMarketAction(String csvFile, boolean useMemoryMappedParser, RowErrorPolicy policy, boolean allSeries) {
+		this.fileName = csvFile;
+		this.allSeries = allSeries;
+		this.parseReport = new ParseReport(csvFile);
+		long parseStart = PipelineMetrics.start();
+		RowQuarantine quarantine = new RowQuarantine(policy, parseReport);
+		try {
+			if(useMemoryMappedParser) {
+				readMapped(csvFile, quarantine);
+			}
+			else {
+				readByLine(csvFile, quarantine);
+			}
+		}
+		finally {
+			quarantine.close();
+		}
+		// the day is complete, give back the room we reserved for tickers that didn't trade
+		marketDay.trimToSize();
+		recordParsed();
+		PipelineMetrics.stop(PipelineMetrics.Timer.PARSE, parseStart);
+	}
+	
+	// this constructor parses a bhavcopy that is already in memory, e.g. one streamed straight out of a zip download
+	// the sourceName is only used to remember where the data came from
+	public OneDayMarketAction(ByteBuffer csvBytes, String sourceName) {
+		this(csvBytes, sourceName, new RowErrorPolicy());
+	}
+	
+	public OneDayMarketAction(ByteBuffer csvBytes, String sourceName, RowErrorPolicy policy) {
+		this(csvBytes, sourceName, policy, false);
+	}
+	
+	public OneDayMarketAction(ByteBuffer csvBytes, String sourceName, RowErrorPolicy policy, boolean allSeries) {
+		this.fileName = sourceName;
+		this.allSeries = allSeries;
+		this.parseReport = new ParseReport(sourceName);
+		long parseStart = PipelineMetrics.start();
+		BhavcopyParser parser = newParser();
+		RowQuarantine quarantine = new RowQuarantine(policy, parseReport);
+		try {
+			parser.parse(csvBytes, newRowHandler(), true, quarantine);
+		}
+		catch(Exception e){
+			// only something like a failing quarantine file gets here, bad rows themselves are handled row by row
+			parseReport.error = e;
+			e.printStackTrace();
+		}
+		finally {
+			quarantine.close();
+			addCounts(parser);
+		}
+		marketDay.trimToSize();
+		recordParsed();
+		PipelineMetrics.stop(PipelineMetrics.Timer.PARSE, parseStart);
+	}
+	
+	// this constructor wraps a day that has already been loaded, e.g. read back from a MarketDaySnapshot file
+	public OneDayMarketAction(MarketDay marketDay, String sourceName) {
+		this.fileName = sourceName;
+		this.marketDay = marketDay;
+		this.parseReport = new ParseReport(sourceName);
+		this.parseReport.rowsRead = marketDay.size();
+		this.parseReport.rowsLoaded = marketDay.size();
+	}
+	
+	// the original reader: one line at a time through a BufferedReader
+	private void readByLine(String csvFile, RowQuarantine quarantine) {
+		// this method will:
 		// 1. parse the csv file
 		// 2. go thru the file line-by-line and create object of the OneTickerOneDay
-		// 3. populate the internal map "mapOfTickers"
+		// 3. populate the internal columnar store "marketDay"
 		
 		// 1. parse the csv file
-		this.fileName = csvFile;
 		BufferedReader br = null;
 		String line = null; // this is our iterator variable
 		String csvSplitBy = ","; // the delimiter for the CSV file
@@ -166,32 +315,34 @@ public class OneDayMarketAction {
 				lineNum++;
 				// if the lineNum is 1, we know this is the header so we ignore it
 				if(lineNum > 1){
-					// split the row into an array of strings using the delimiter
-					String[] oneQuote = line.split(csvSplitBy);
-					
-					// create an object to hold the activity of 1 single ticket on a given day
-					// each row holds one tickers activity
-					OneDayMarketAction.OneTickerOneDay otod = new OneDayMarketAction.OneTickerOneDay(oneQuote);
+					parseReport.rowsRead++;
 					
-					//skip rows that are not the ticker of an equity
-					// compare too return <0 if not equal and 0 if the strings match
-					if(otod.getSeries().compareTo("EQ") == 0){
-						
-						//add equity object into the day's map
-						mapOfTickers.put(oneQuote[0], otod);
+					// a bad row is handed to the quarantine and skipped, unless the error budget has run out
+					try {
+						addRow(line.split(csvSplitBy));
+					}
+					catch(RuntimeException e) {
+						if(!quarantine.onBadRow(lineNum, line, e)) {
+							break;
+						}
 					}
 				}
 				
 			}
 		}
 		catch(Exception e){
+			// e.g. the file isn't there, or the quarantine file can't be written
+			parseReport.error = e;
 			e.printStackTrace();
 		}
 		
 		finally{
 			try {
 				// closing a file can throw errors so we surround with a try/catch block
-				br.close();
+				// note: br is still null if the file couldn't be opened
+				if(br != null) {
+					br.close();
+				}
 			}
 			catch (IOException ioe) {
 				ioe.printStackTrace();
@@ -201,17 +352,145 @@ public class OneDayMarketAction {
 		
 	}
 	
+	// check one split row and add it to the day if it is an EQ row (or any row in all-series mode), throwing if it is malformed
+	// the checks are made in the same order as BhavcopyParser makes them, so both readers reject the same rows
+	private void addRow(String[] oneQuote) {
+		
+		// the row has to have all the columns we read
+		if(oneQuote.length <= BhavcopyParser.COL_PREV_CLOSE) {
+			throw new ArrayIndexOutOfBoundsException("Row has " + oneQuote.length + " columns, expected at least " + (BhavcopyParser.COL_PREV_CLOSE + 1));
+		}
+		
+		// split() doesn't know about quotes, so a quoted field with a comma in it would shift every column after it
+		for(int i = 0; i <= BhavcopyParser.COL_PREV_CLOSE; i++) {
+			if(oneQuote[i].indexOf('"') >= 0) {
+				throw new IllegalArgumentException("Quoted field in column " + (i + 1));
+			}
+		}
+		
+		//skip rows that are not the ticker of an equity
+		// compare too return <0 if not equal and 0 if the strings match
+		// note: this is checked before the prices are parsed, so a bad price in a row we throw away anyway doesn't count
+		if(!allSeries && oneQuote[1].compareTo("EQ") != 0){
+			parseReport.rowsSkipped++;
+			return;
+		}
+		
+		// parse the prices of 1 single ticker on a given day
+		// each row holds one tickers activity
+		double open = Double.parseDouble(oneQuote[2]);
+		double close = Double.parseDouble(oneQuote[3]);
+		double high = Double.parseDouble(oneQuote[4]);
+		double low = Double.parseDouble(oneQuote[5]);
+		double prevClose = Double.parseDouble(oneQuote[6]);
+		
+		//add the equity's values into the day's columns
+		marketDay.put(oneQuote[0], oneQuote[1], open, close, high, low, prevClose);
+		parseReport.rowsLoaded++;
+		
+	}
+	
+	// the zero-copy reader: the file is memory-mapped and scanned byte by byte (see BhavcopyParser)
+	private void readMapped(String csvFile, RowQuarantine quarantine) {
+		BhavcopyParser parser = newParser();
+		try {
+			parser.parseFile(csvFile, newRowHandler(), quarantine);
+		}
+		catch(Exception e){
+			// e.g. the file isn't there, or the quarantine file can't be written
+			parseReport.error = e;
+			e.printStackTrace();
+		}
+		finally {
+			addCounts(parser);
+		}
+		
+	}
+	
+	// add a BhavcopyParser's row counts to the report (the rows it loaded are counted by the row handler)
+	private void addCounts(BhavcopyParser parser) {
+		parseReport.rowsRead += parser.getRowsRead();
+		parseReport.rowsSkipped += parser.getRowsSkipped();
+	}
+	
+	// add this file's rows to the pipeline metrics, malformed rows count as skipped too
+	private void recordParsed() {
+		PipelineMetrics.add(PipelineMetrics.Counter.ROWS_PARSED, parseReport.rowsLoaded);
+		PipelineMetrics.add(PipelineMetrics.Counter.ROWS_SKIPPED, parseReport.rowsSkipped + parseReport.rowsRejected);
+	}
+	
+	// what happened while this day was read: rows loaded, skipped and rejected, and whether the error budget ran out
+	public ParseReport getParseReport() {
+		return parseReport;
+	}
+	
+	
+	// a parser that takes its tickers from this day's symbol table, so a ticker we know already needs no new String
+	private BhavcopyParser newParser() {
+		BhavcopyParser parser = new BhavcopyParser();
+		parser.setSymbolTable(marketDay.getSymbolTable());
+		parser.setAllSeries(allSeries);
+		return parser;
+	}
+	
+	// the parser hands us each EQ row's values and we add them straight into the day's columns
+	private BhavcopyParser.RowHandler newRowHandler() {
+		return new BhavcopyParser.RowHandler() {
+			@Override
+			public void onRow(String ticker, String series, double open, double close, double high, double low, double prevClose) {
+				marketDay.put(ticker, series, open, close, high, low, prevClose);
+				parseReport.rowsLoaded++;
+			}
+		};
+	}
+	
+	
+	// returns the market action today for one ticker, or null if it did not trade (as an EQ) today
+	// with all series kept, this is the ticker's first row in the file
+	public OneTickerOneDay getOneTicker(String ticker) {
+		int id = marketDay.idOf(ticker);
+		return id < 0 ? null : new OneTickerOneDay(marketDay, id);
+	}
+	
+	// returns the market action today for one ticker in one series, or null if it did not trade in that series today
+	public OneTickerOneDay getOneTicker(String ticker, String series) {
+		int id = marketDay.idOf(ticker, series);
+		return id < 0 ? null : new OneTickerOneDay(marketDay, id);
+	}
+	
+	// the day's secondary indexes (by series, close and % change) for range and filter queries, e.g.
+	//   getIndex().query().series("EQ").closeBetween(100, 500).changeBetween(0.05, Double.POSITIVE_INFINITY).ids()
+	// the index is built the first time it is asked for and kept until the day's values change
+	public MarketDayIndex getIndex() {
+		MarketDayIndex current = index;
+		if(current == null || current.getVersion() != marketDay.getVersion()) {
+			current = new MarketDayIndex(marketDay);
+			index = current;
+		}
+		return current;
+	}
+	
+	// gives access to the columns themselves, for code that wants to loop over ids rather than objects
+	public MarketDay getMarketDay() {
+		return marketDay;
+	}
+	
 	
 	// method that returns a list of sorted ticker objects
 	// it uses the StockMoveComparator class below to do so
 	public List<OneTickerOneDay> getSortedMovers(){
 		
 		//create unsorted list
-		// to do so: take the map and get all the vals of the mapOfTickers (which are objects) and put them into an ArrayList
-		List<OneTickerOneDay> listOfMarketAction = new ArrayList<>(this.mapOfTickers.values());
+		// to do so: create a lightweight view for each ticker id in the marketDay and put them into an ArrayList
+		List<OneTickerOneDay> listOfMarketAction = new ArrayList<>(marketDay.size());
+		for(int id = 0; id < marketDay.size(); id++) {
+			listOfMarketAction.add(new OneTickerOneDay(marketDay, id));
+		}
 		
 		//sort the list (param 1) using a specified comparator (param 2)
+		long sortStart = PipelineMetrics.start();
 		Collections.sort(listOfMarketAction, new StockMoveComparator());
+		PipelineMetrics.stop(PipelineMetrics.Timer.SORT, sortStart);
 		
 		// return the sorted list to the calling program
 		return listOfMarketAction;
@@ -220,11 +499,113 @@ public class OneDayMarketAction {
 	
 	
 	
+	// method that returns only the k biggest movers in one direction, without sorting the whole market
+	// it picks them from the precomputed % changes with a bounded heap (see TopKSelector), which is O(n log k)
+	// tickers whose % change is NaN (i.e. prevClose == 0) never count as movers and are left out
+	// ties are broken by the order the tickers were read in
+	public List<OneTickerOneDay> getTopMovers(int k, MoveDirection direction) {
+		
+		// in intraday mode the live ranking is always up to date, so read the movers straight off it
+		if(liveRanking != null) {
+			return toTickers(direction == MoveDirection.GAINERS ? liveRanking.topGainers(k) : liveRanking.topLosers(k), k);
+		}
+		
+		int version = marketDay.getVersion();
+		MoversCache cache = (direction == MoveDirection.GAINERS) ? cachedGainers : cachedLosers;
+		
+		// only go back to the data if we haven't already got at least k movers (or every mover there is) cached
+		if(cache == null || !cache.answers(version, k)) {
+			long sortStart = PipelineMetrics.start();
+			double[] changes = marketDay.getPercentageChanges();
+			if(direction == MoveDirection.GAINERS) {
+				cache = new MoversCache(version, k, TopKSelector.largest(changes, changes.length, k));
+				cachedGainers = cache;
+			}
+			else {
+				cache = new MoversCache(version, k, TopKSelector.smallest(changes, changes.length, k));
+				cachedLosers = cache;
+			}
+			PipelineMetrics.stop(PipelineMetrics.Timer.SORT, sortStart);
+		}
+		int[] ids = cache.ids;
+		
+		return toTickers(ids, k);
+		
+	}
+	
+	// build the views for the first k ids
+	private List<OneTickerOneDay> toTickers(int[] ids, int k) {
+		int count = Math.min(k, ids.length);
+		List<OneTickerOneDay> movers = new ArrayList<>(count);
+		for(int i = 0; i < count; i++) {
+			movers.add(new OneTickerOneDay(marketDay, ids[i]));
+		}
+		return movers;
+	}
+	
+	
+	// intraday mode: from now on the day keeps a live ranking of its movers which is updated one ticker at a time
+	// as quotes come in (through updateQuote(), applyAppendedRows() or the OneTickerOneDay setters),
+	// so getTopMovers() stays current without re-reading the file or re-sorting the market
+	public void enableLiveRanking() {
+		if(liveRanking == null) {
+			liveRanking = new LiveMoversRanking(marketDay);
+			marketDay.setChangeListener(liveRanking);
+		}
+	}
+	
+	// take in a new quote for one ticker (a ticker we haven't seen today is added)
+	// with the live ranking on, this costs O(log n)
+	public void updateQuote(String ticker, String series, double open, double close, double high, double low, double prevClose) {
+		marketDay.put(ticker, series, open, close, high, low, prevClose);
+	}
+	
+	// read the rows that have been appended to a bhavcopy-format file since we last looked, and apply them as quotes.
+	// "fromOffset" is where the previous call stopped (use the file's length after the initial load, or 0 for a file
+	// with no header), and the offset to pass next time is returned. a line that is still being written
+	// (no '\n' yet) is left for the next call.
+	public long applyAppendedRows(String csvFile, long fromOffset) throws IOException {
+		
+		RandomAccessFile raf = new RandomAccessFile(csvFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if(size <= fromOffset) {
+				return fromOffset;
+			}
+			if(size - fromOffset > Integer.MAX_VALUE) {
+				throw new IOException("Too many appended bytes to map at once: " + (size - fromOffset));
+			}
+			
+			MappedByteBuffer appended = channel.map(FileChannel.MapMode.READ_ONLY, fromOffset, size - fromOffset);
+			
+			// only hand complete lines to the parser
+			int complete = appended.limit();
+			while(complete > 0 && appended.get(complete - 1) != '\n') {
+				complete--;
+			}
+			appended.limit(complete);
+			
+			// a bad appended row is skipped (and counted in the day's report) so it can't block the rows after it
+			BhavcopyParser parser = newParser();
+			parser.parse(appended, newRowHandler(), false, new RowQuarantine(new RowErrorPolicy(), parseReport));
+			addCounts(parser);
+			return fromOffset + complete;
+		}
+		finally {
+			raf.close();
+		}
+		
+	}
+	
+	
 	// this is a static nested INNER class that compares indiv tickers
 	// compare() returns: 1 if obj1 > obj2, returns 0 if obj1 equals obj2, returns -1 if obj1 < obj2.
 	// note: >, equals, < are decided by the programmer and the logic is in the compare() method.
 	// this implementation will use % change to compare tickers.
 	// note: the Comparator uses a "template parameter" Compare<T> so it can compare many objs.
+	// note: a NaN % change (prevClose == 0) is treated as bigger than every real move, so those tickers sort to the end.
+	// without this NaN would "equal" everything, which breaks the comparator contract and makes the sort order arbitrary.
 	public static class StockMoveComparator implements Comparator<OneTickerOneDay> {
 
 		@Override
@@ -233,6 +614,12 @@ public class OneDayMarketAction {
 			double pctChange1 = o1.getPercentageChange();
 			double pctChange2 = o2.getPercentageChange();
 			
+			boolean isNaN1 = Double.isNaN(pctChange1);
+			boolean isNaN2 = Double.isNaN(pctChange2);
+			if(isNaN1 || isNaN2) { // at least one has no move, those go last
+				return (isNaN1 == isNaN2) ? 0 : (isNaN1 ? 1 : -1);
+			}
+			
 			if(pctChange1 > pctChange2) { // obj1 greater than
 				return 1;
 			}
@@ -0,0 +1,453 @@
+package org.kelly_ann;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+class ParallelZipWriter {
+	// this class builds one zip archive out of many files using all the cores.
+	// ZipOutputStream can only compress one entry at a time, so instead:
+	// 1. every file is compressed on its own, in parallel, as a raw deflate stream (or stored as-is) while its CRC is computed
+	// 2. the compressed entries are then "stitched" together in order by writing the zip headers around them ourselves
+	// each entry is self-contained in the zip format, so an entry compressed on its own is exactly what a zip tool expects.
+	// only a few entries (WINDOW_PER_THREAD per thread) are compressed ahead of the one being stitched, so the memory
+	// held by finished entries stays bounded however many files there are.
+	// the archive is written to <zipFilePath>.tmp and renamed when it is complete, so a failed run leaves no partial zip.
+	// note: this writes the classic zip format, so no single entry (or the whole archive) can be 4GB or more.
+	// it is used by UnzipUtility.zip(List, ...), see there.
+
+	// pass this as the compression level to store every entry without compressing it
+	static final int STORED = -2;
+
+	// files with these endings are already compressed, deflating them again only costs time
+	private static final String[] COMPRESSED_ENDINGS = {".xlsx", ".zip", ".gz", ".jar", ".png", ".jpg"};
+
+	// compressed entries up to this size are kept in memory while they wait to be stitched, bigger ones go to a temp file
+	private static final int IN_MEMORY_LIMIT = 4 * 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// how many entries each thread may have compressed (or be compressing) ahead of the stitching
+	private static final int WINDOW_PER_THREAD = 2;
+
+	// the zip format's limits without the zip64 extension
+	private static final long MAX_32BIT = 0xFFFFFFFFL;
+	private static final int MAX_ENTRIES = 0xFFFF;
+
+	// zip method ids and the "names are UTF-8" flag
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_DEFLATED = 8;
+	private static final int FLAG_UTF8 = 1 << 11;
+
+	private final int compressionLevel;
+	private final boolean storeCompressedFiles;
+	private final int threads;
+
+
+	ParallelZipWriter(int compressionLevel, boolean storeCompressedFiles, int threads) {
+		if(compressionLevel != STORED && compressionLevel != Deflater.DEFAULT_COMPRESSION
+				&& (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException("Invalid compression level " + compressionLevel);
+		}
+		this.compressionLevel = compressionLevel;
+		this.storeCompressedFiles = storeCompressedFiles;
+		this.threads = Math.max(threads, 1);
+	}
+
+
+	// zip the given files and directories (a directory adds everything under it) into zipFilePath
+	// returns the names of the entries written, in archive order
+	List<String> write(List<String> inputPaths, String zipFilePath) throws IOException {
+
+		// 1. work out the entries: a file becomes "<its name>", a directory's files become "<dir name>/<relative path>"
+		List<File> files = new ArrayList<>();
+		List<String> names = new ArrayList<>();
+		for(String inputPath : inputPaths) {
+			File input = new File(inputPath);
+			if(input.isDirectory()) {
+				addDirectory(input, input.getName() + "/", files, names);
+			}
+			else if(input.isFile()) {
+				files.add(input);
+				names.add(input.getName());
+			}
+			else {
+				throw new IOException("No such file or directory: " + inputPath);
+			}
+		}
+		if(files.size() >= MAX_ENTRIES) {
+			throw new IOException("Too many entries for a zip file without zip64: " + files.size());
+		}
+
+		// 2. compress them in parallel, keeping at most "window" entries in flight ahead of the stitching
+		// every temp file a task makes is tracked here, so all of them can be deleted whatever happens to the task
+		final Set<File> tempFiles = ConcurrentHashMap.newKeySet();
+		int window = threads * WINDOW_PER_THREAD;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<CompressedEntry>> compressed = new ArrayList<>(files.size());
+		File target = new File(zipFilePath);
+		File temp = new File(target.getPath() + ".tmp");
+		boolean complete = false;
+		try {
+			for(int i = 0; i < files.size() && i < window; i++) {
+				compressed.add(submit(pool, files.get(i), names.get(i), tempFiles));
+			}
+
+			// 3. stitch them into the archive in order, as each one becomes ready, and start the next one
+			FileOutputStream fos = new FileOutputStream(temp);
+			try {
+				FileChannel out = fos.getChannel();
+				List<CompressedEntry> written = new ArrayList<>(files.size());
+				for(int i = 0; i < files.size(); i++) {
+					CompressedEntry entry = getResult(compressed.get(i));
+					int next = i + window;
+					if(next < files.size()) {
+						compressed.add(submit(pool, files.get(next), names.get(next), tempFiles));
+					}
+					entry.offset = out.position();
+					writeFully(out, localHeader(entry));
+					entry.copyTo(out);
+					written.add(entry);
+				}
+
+				// 4. the central directory and its end record, which is what zip readers look at first
+				long centralStart = out.position();
+				for(CompressedEntry entry : written) {
+					writeFully(out, centralHeader(entry));
+				}
+				long centralEnd = out.position();
+				if(centralEnd > MAX_32BIT) {
+					throw new IOException("Archive too large for a zip file without zip64: " + zipFilePath);
+				}
+				writeFully(out, endOfCentralDirectory(written.size(), centralEnd - centralStart, centralStart));
+			}
+			finally {
+				fos.close();
+			}
+
+			// 5. the archive is complete, put it where it was asked for
+			if(!temp.renameTo(target)) {
+				// some platforms won't rename over an existing file
+				target.delete();
+				if(!temp.renameTo(target)) {
+					throw new IOException("Could not replace " + zipFilePath);
+				}
+			}
+			complete = true;
+		}
+		finally {
+			// stop the tasks still running and wait for them, so none of them makes a temp file after the clean-up below
+			for(Future<CompressedEntry> future : compressed) {
+				future.cancel(true);
+			}
+			pool.shutdownNow();
+			try {
+				pool.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			for(File tempFile : tempFiles) {
+				tempFile.delete();
+			}
+			if(!complete) {
+				temp.delete();
+			}
+		}
+
+		return names;
+
+	}
+
+	private Future<CompressedEntry> submit(ExecutorService pool, final File file, final String name, final Set<File> tempFiles) {
+		return pool.submit(() -> compress(file, name, tempFiles));
+	}
+
+	private static void addDirectory(File dir, String prefix, List<File> files, List<String> names) {
+		File[] children = dir.listFiles();
+		if(children == null) {
+			return;
+		}
+		// sort so the archive's order doesn't depend on the file system
+		Arrays.sort(children);
+		for(File child : children) {
+			if(child.isDirectory()) {
+				addDirectory(child, prefix + child.getName() + "/", files, names);
+			}
+			else if(child.isFile()) {
+				files.add(child);
+				names.add(prefix + child.getName());
+			}
+		}
+	}
+
+
+	// compress (or store) one file and compute its CRC, this runs on a worker thread
+	// a temp file it spills to is added to tempFiles before anything is written to it
+	private CompressedEntry compress(File file, String name, Set<File> tempFiles) throws IOException {
+
+		CompressedEntry entry = new CompressedEntry(name, file.lastModified());
+		boolean store = compressionLevel == STORED || (storeCompressedFiles && isCompressedFile(name));
+		entry.method = store ? METHOD_STORED : METHOD_DEFLATED;
+
+		// small results stay in memory, big ones are spilled to a temp file
+		OutputStream target;
+		ByteArrayOutputStream inMemory = null;
+		if(file.length() <= IN_MEMORY_LIMIT) {
+			inMemory = new ByteArrayOutputStream((int) Math.max(file.length(), 32));
+			target = inMemory;
+		}
+		else {
+			entry.tempFile = File.createTempFile("zip-entry-", ".tmp");
+			tempFiles.add(entry.tempFile);
+			target = new FileOutputStream(entry.tempFile);
+		}
+
+		CountingOutputStream counted = new CountingOutputStream(target);
+		Deflater deflater = store ? null : new Deflater(compressionLevel, true); // "true" = raw deflate, no zlib header
+		CRC32 crc = new CRC32();
+		InputStream in = new FileInputStream(file);
+		try {
+			OutputStream out = store ? counted : new DeflaterOutputStream(counted, deflater, BUFFER_SIZE);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long size = 0;
+			int read;
+			while((read = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, read);
+				out.write(buffer, 0, read);
+				size += read;
+			}
+			out.close();
+
+			entry.crc = crc.getValue();
+			entry.size = size;
+			entry.compressedSize = counted.count;
+			if(inMemory != null) {
+				entry.data = inMemory.toByteArray();
+			}
+		}
+		finally {
+			in.close();
+			target.close();
+			if(deflater != null) {
+				deflater.end();
+			}
+		}
+
+		if(entry.size > MAX_32BIT || entry.compressedSize > MAX_32BIT) {
+			entry.discard();
+			throw new IOException("Entry too large for a zip file without zip64: " + name);
+		}
+		return entry;
+
+	}
+
+	private static boolean isCompressedFile(String name) {
+		String lower = name.toLowerCase(Locale.ROOT);
+		for(String ending : COMPRESSED_ENDINGS) {
+			if(lower.endsWith(ending)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	// the zip record layouts, see section 4.3 of PKWARE's APPNOTE.TXT
+
+	private static ByteBuffer localHeader(CompressedEntry entry) {
+		byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer header = ByteBuffer.allocate(30 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0x04034b50);
+		header.putShort((short) 20); // version needed to extract (2.0)
+		header.putShort((short) FLAG_UTF8);
+		header.putShort((short) entry.method);
+		header.putInt(entry.dosTime);
+		header.putInt((int) entry.crc);
+		header.putInt((int) entry.compressedSize);
+		header.putInt((int) entry.size);
+		header.putShort((short) name.length);
+		header.putShort((short) 0); // no extra field
+		header.put(name);
+		header.flip();
+		return header;
+	}
+
+	private static ByteBuffer centralHeader(CompressedEntry entry) throws IOException {
+		if(entry.offset > MAX_32BIT) {
+			throw new IOException("Archive too large for a zip file without zip64");
+		}
+		byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer header = ByteBuffer.allocate(46 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0x02014b50);
+		header.putShort((short) 20); // version made by
+		header.putShort((short) 20); // version needed to extract
+		header.putShort((short) FLAG_UTF8);
+		header.putShort((short) entry.method);
+		header.putInt(entry.dosTime);
+		header.putInt((int) entry.crc);
+		header.putInt((int) entry.compressedSize);
+		header.putInt((int) entry.size);
+		header.putShort((short) name.length);
+		header.putShort((short) 0); // no extra field
+		header.putShort((short) 0); // no comment
+		header.putShort((short) 0); // disk number
+		header.putShort((short) 0); // internal attributes
+		header.putInt(0); // external attributes
+		header.putInt((int) entry.offset);
+		header.put(name);
+		header.flip();
+		return header;
+	}
+
+	private static ByteBuffer endOfCentralDirectory(int entries, long centralSize, long centralStart) {
+		ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+		end.putInt(0x06054b50);
+		end.putShort((short) 0); // this disk
+		end.putShort((short) 0); // disk where the central directory starts
+		end.putShort((short) entries);
+		end.putShort((short) entries);
+		end.putInt((int) centralSize);
+		end.putInt((int) centralStart);
+		end.putShort((short) 0); // no comment
+		end.flip();
+		return end;
+	}
+
+	// zip files store times in the old MS-DOS format: 2-second resolution, years from 1980
+	private static int toDosTime(long millis) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(millis);
+		int year = c.get(Calendar.YEAR);
+		if(year < 1980) {
+			return (1 << 21) | (1 << 16); // 1980-01-01 00:00
+		}
+		return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+				| c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	private static CompressedEntry getResult(Future<CompressedEntry> future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while zipping");
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+
+	// one entry that has been compressed and is waiting to be stitched into the archive
+	private static class CompressedEntry {
+
+		private final String name;
+		private final int dosTime;
+		private int method;
+		private long crc;
+		private long size;
+		private long compressedSize;
+		private long offset;
+
+		// the compressed bytes are in exactly one of these
+		private byte[] data;
+		private File tempFile;
+
+		CompressedEntry(String name, long lastModified) {
+			this.name = name;
+			this.dosTime = toDosTime(lastModified);
+		}
+
+		void copyTo(FileChannel out) throws IOException {
+			if(data != null) {
+				writeFully(out, ByteBuffer.wrap(data));
+				data = null;
+				return;
+			}
+			FileInputStream in = new FileInputStream(tempFile);
+			try {
+				FileChannel source = in.getChannel();
+				long position = 0;
+				while(position < compressedSize) {
+					position += source.transferTo(position, compressedSize - position, out);
+				}
+			}
+			finally {
+				in.close();
+			}
+			discard();
+		}
+
+		void discard() {
+			data = null;
+			if(tempFile != null) {
+				tempFile.delete();
+				tempFile = null;
+			}
+		}
+	}
+
+	// counts the compressed bytes as they go past
+	private static class CountingOutputStream extends OutputStream {
+
+		private final OutputStream out;
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+}
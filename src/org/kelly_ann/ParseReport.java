@@ -0,0 +1,74 @@
+package org.kelly_ann;
+
+public class ParseReport {
+	// this class says what happened when one bhavcopy file was read into a OneDayMarketAction:
+	// how many rows were loaded, skipped (not EQ) or rejected (malformed), whether the error budget ran out,
+	// where the rejected rows were quarantined, and the error that stopped the read if there was one (e.g. a missing file)
+
+	private final String sourceName;
+	int rowsRead;
+	int rowsLoaded;
+	int rowsSkipped;
+	int rowsRejected;
+	boolean budgetExceeded;
+	String quarantineFile;
+	Exception error;
+
+	ParseReport(String sourceName) {
+		this.sourceName = sourceName;
+	}
+
+
+	public String getSourceName() {
+		return sourceName;
+	}
+
+	// every row looked at, not counting the header
+	public int getRowsRead() {
+		return rowsRead;
+	}
+
+	// EQ rows (or rows of any series, if all series were kept) that made it into the day
+	public int getRowsLoaded() {
+		return rowsLoaded;
+	}
+
+	// well-formed rows that were left out because they aren't EQ rows
+	public int getRowsSkipped() {
+		return rowsSkipped;
+	}
+
+	// malformed rows that were left out (and quarantined if the policy says so)
+	public int getRowsRejected() {
+		return rowsRejected;
+	}
+
+	// true if there were more bad rows than the policy allows, in which case the rest of the file wasn't read
+	public boolean isBudgetExceeded() {
+		return budgetExceeded;
+	}
+
+	// the sidecar file the rejected rows were written to, or null if none was written
+	public String getQuarantineFile() {
+		return quarantineFile;
+	}
+
+	// the error that stopped the whole file being read (e.g. it doesn't exist), or null
+	public Exception getError() {
+		return error;
+	}
+
+	// true if every row was read and none was malformed
+	public boolean isClean() {
+		return error == null && !budgetExceeded && rowsRejected == 0;
+	}
+
+	@Override
+	public String toString() {
+		return sourceName + ": read=" + rowsRead + ", loaded=" + rowsLoaded + ", skipped=" + rowsSkipped
+				+ ", rejected=" + rowsRejected + (budgetExceeded ? ", ERROR BUDGET EXCEEDED" : "")
+				+ (quarantineFile != null ? ", quarantined to " + quarantineFile : "")
+				+ (error != null ? ", error=" + error : "");
+	}
+
+}
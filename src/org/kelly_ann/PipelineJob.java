@@ -0,0 +1,342 @@
+package org.kelly_ann;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+public class PipelineJob {
+	// this class is the job Main runs: it downloads, unzips, parses and exports every trading day between two dates
+	// using a StagedPipeline, so one day is being downloaded while the one before is parsed and the one before that
+	// is written to Excel. everything that used to be hard-coded in Main (urls, Windows paths...) comes from a
+	// .properties file instead, see resources/pipeline.properties for an example with every key.
+	//
+	// the stages are:
+	// 1. download   fetch the day's archive into the work directory (or through the DownloadCache if one is set up)
+	//               a missing archive is a holiday, the day is dropped
+	// 2. parse      unzip the archive and read the csv into a OneDayMarketAction, with the configured RowErrorPolicy
+	// 3. export     write the day's biggest movers to <outputDirectory>/<date>-movers.xls, from the report template
+	//               if one is set (see ReportTemplate), and the day's whole ranking to <date>-movers.csv and/or .json
+	//               if "export.formats" asks for them (see MoversExporter)
+	// and then each day gets a status line, followed by its top movers as CSV rows (the "print.top" key, 0 to print
+	// nothing but the status lines). the CSV header is printed once, in front of the first rows.
+
+	// the keys of the .properties file
+	static final String FROM = "from";
+	static final String TO = "to";
+	static final String BASE_URL = "baseUrl";
+	static final String SKIP_WEEKENDS = "skipWeekends";
+	static final String WORK_DIRECTORY = "workDirectory";
+	static final String OUTPUT_DIRECTORY = "outputDirectory";
+	static final String CACHE_DIRECTORY = "cache.directory";
+	static final String CACHE_MAX_BYTES = "cache.maxBytes";
+	static final String QUEUE_CAPACITY = "queue.capacity";
+	static final String DOWNLOAD_THREADS = "download.threads";
+	static final String PARSE_THREADS = "parse.threads";
+	static final String EXPORT_THREADS = "export.threads";
+	static final String EXPORT_TEMPLATE = "export.template";
+	static final String EXPORT_MOVERS = "export.movers";
+	static final String EXPORT_FORMATS = "export.formats";
+	static final String MEMORY_MAPPED = "parse.memoryMapped";
+	static final String MAX_BAD_ROWS = "parse.maxBadRows";
+	static final String QUARANTINE_DIRECTORY = "parse.quarantineDirectory";
+	static final String SYMBOLS_FILE = "symbols.file";
+	static final String METRICS_FILE = "metrics.file";
+	static final String PRINT_TOP = "print.top";
+
+	private final LocalDate from;
+	private final LocalDate to;
+	private final String baseUrl;
+	private final boolean skipWeekends;
+	private final String workDirectory;
+	private final String outputDirectory;
+	private final DownloadCache downloadCache;
+	private final int queueCapacity;
+	private final int downloadThreads;
+	private final int parseThreads;
+	private final int exportThreads;
+	private final String exportTemplate;
+	private final int exportMovers;
+	private final boolean exportXls;
+	private final List<MoversExporter.Format> exportFormats = new ArrayList<>();
+	private final boolean memoryMapped;
+	private final RowErrorPolicy rowErrorPolicy = new RowErrorPolicy();
+	private final String symbolsFile;
+	private final String metricsFile;
+	private final int printTop;
+
+	// the pipeline of the run in progress, so shutdown() can reach it
+	private volatile StagedPipeline<LocalDate, Day> pipeline;
+	private volatile boolean shutdownRequested;
+
+
+	// read the job from a .properties file
+	public static PipelineJob load(String propertiesFile) throws IOException {
+		Properties config = new Properties();
+		InputStream in = new FileInputStream(propertiesFile);
+		try {
+			config.load(in);
+		}
+		finally {
+			in.close();
+		}
+		return new PipelineJob(config);
+	}
+
+	// only "from" is required, every other key has a default
+	public PipelineJob(Properties config) {
+
+		String tmp = System.getProperty("java.io.tmpdir");
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		this.from = LocalDate.parse(required(config, FROM));
+		this.to = LocalDate.parse(config.getProperty(TO, from.toString()).trim());
+		if(to.isBefore(from)) {
+			throw new IllegalArgumentException("\"" + TO + "\" (" + to + ") is before \"" + FROM + "\" (" + from + ")");
+		}
+		this.baseUrl = config.getProperty(BASE_URL, BackfillEngine.NSE_BASE_URL).trim();
+		this.skipWeekends = Boolean.parseBoolean(config.getProperty(SKIP_WEEKENDS, "true").trim());
+		this.workDirectory = config.getProperty(WORK_DIRECTORY, tmp + File.separator + "bhavcopy").trim();
+		this.outputDirectory = config.getProperty(OUTPUT_DIRECTORY, workDirectory).trim();
+
+		String cacheDirectory = config.getProperty(CACHE_DIRECTORY);
+		this.downloadCache = (cacheDirectory == null || cacheDirectory.trim().isEmpty()) ? null
+				: new DownloadCache(cacheDirectory.trim(), longValue(config, CACHE_MAX_BYTES, Long.MAX_VALUE));
+
+		this.queueCapacity = intValue(config, QUEUE_CAPACITY, 4);
+		this.downloadThreads = intValue(config, DOWNLOAD_THREADS, 4);
+		this.parseThreads = intValue(config, PARSE_THREADS, cores);
+		this.exportThreads = intValue(config, EXPORT_THREADS, 1);
+		this.exportTemplate = emptyToNull(config.getProperty(EXPORT_TEMPLATE));
+		this.exportMovers = intValue(config, EXPORT_MOVERS, 5);
+		boolean xls = false;
+		for(String format : config.getProperty(EXPORT_FORMATS, "xls").split(",")) {
+			format = format.trim();
+			if(format.equalsIgnoreCase("xls")) {
+				xls = true;
+			}
+			else if(!format.isEmpty()) {
+				exportFormats.add(MoversExporter.Format.valueOf(format.toUpperCase(Locale.ENGLISH)));
+			}
+		}
+		this.exportXls = xls;
+		this.memoryMapped = Boolean.parseBoolean(config.getProperty(MEMORY_MAPPED, "true").trim());
+
+		rowErrorPolicy.setMaxBadRows(intValue(config, MAX_BAD_ROWS, Integer.MAX_VALUE));
+		String quarantineDirectory = config.getProperty(QUARANTINE_DIRECTORY);
+		if(quarantineDirectory != null && !quarantineDirectory.trim().isEmpty()) {
+			rowErrorPolicy.setQuarantineDirectory(quarantineDirectory.trim());
+		}
+
+		this.symbolsFile = emptyToNull(config.getProperty(SYMBOLS_FILE));
+		this.metricsFile = emptyToNull(config.getProperty(METRICS_FILE));
+		this.printTop = intValue(config, PRINT_TOP, 5);
+
+	}
+
+
+	// run the whole job and return once every day has been exported (or dropped, or has failed)
+	public StagedPipeline.Result run() throws IOException, InterruptedException {
+
+		// 1. set up the directories, and last run's symbol ids so they stay the same
+		new File(workDirectory).mkdirs();
+		new File(outputDirectory).mkdirs();
+		if(symbolsFile != null) {
+			SymbolTable.setGlobal(SymbolTable.loadOrCreate(symbolsFile));
+		}
+
+		// the template is read once and shared by every export
+		final ReportTemplate template = (exportTemplate != null) ? ReportTemplate.load(exportTemplate) : ReportTemplate.blank();
+
+		// 2. put the stages together, each with as many threads as it was given
+		StagedPipeline<LocalDate, Day> stages = StagedPipeline.<LocalDate>start(queueCapacity)
+				.then("download", downloadThreads, new StagedPipeline.Stage<LocalDate, Day>() {
+					@Override
+					public Day process(LocalDate date) throws Exception {
+						return download(date);
+					}
+				})
+				.then("parse", parseThreads, new StagedPipeline.Stage<Day, Day>() {
+					@Override
+					public Day process(Day day) throws Exception {
+						return parse(day);
+					}
+				})
+				.then("export", exportThreads, new StagedPipeline.Stage<Day, Day>() {
+					@Override
+					public Day process(Day day) throws Exception {
+						return export(day, template);
+					}
+				});
+		pipeline = stages;
+		if(shutdownRequested) {
+			stages.shutdown();
+		}
+
+		// 3. feed it the days and print what comes out
+		final MoversExporter console = new MoversExporter(Channels.newChannel(System.out), MoversExporter.Format.CSV,
+				MoversExporter.DAY_MOVER_COLUMNS);
+		StagedPipeline.Result result = stages.run(tradingDays(), new StagedPipeline.Sink<Day>() {
+			@Override
+			public void accept(Day day) throws IOException {
+				print(day, console);
+			}
+		});
+		console.close();
+
+		// 4. keep the symbol ids and the numbers for next time
+		if(symbolsFile != null) {
+			SymbolTable.global().save(symbolsFile);
+		}
+		if(metricsFile != null) {
+			PipelineMetrics.writeJson(metricsFile);
+		}
+		return result;
+
+	}
+
+	// stop starting new days, the ones already on their way are still finished and exported
+	public void shutdown() {
+		shutdownRequested = true;
+		StagedPipeline<LocalDate, Day> current = pipeline;
+		if(current != null) {
+			current.shutdown();
+		}
+	}
+
+
+	// the days to ask for, in date order
+	List<LocalDate> tradingDays() {
+		List<LocalDate> days = new ArrayList<>();
+		for(LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+			if(skipWeekends && (day.getDayOfWeek() == DayOfWeek.SATURDAY || day.getDayOfWeek() == DayOfWeek.SUNDAY)) {
+				continue;
+			}
+			days.add(day);
+		}
+		return days;
+	}
+
+	// stage 1: get the archive onto the local disk, or null if there is no archive for the day
+	private Day download(LocalDate date) throws IOException {
+		String url = BackfillEngine.archiveUrl(baseUrl, date);
+		// with a cache the archive is linked (or copied) into the work directory, so the day waiting on the queue
+		// doesn't depend on a cached object that another download's eviction could delete before it is parsed
+		String zipFile = workDirectory + File.separator + date + ".zip";
+		try {
+			if(downloadCache != null) {
+				downloadCache.fetchTo(url, zipFile);
+			}
+			else {
+				UnzipUtility.download(url, zipFile);
+			}
+			return new Day(date, zipFile);
+		}
+		catch(FileNotFoundException e) {
+			return null;
+		}
+	}
+
+	// stage 2: unzip the archive into its own directory and read the csv in it
+	private Day parse(Day day) throws IOException {
+		String destination = workDirectory + File.separator + day.date;
+		List<String> csvFiles = UnzipUtility.unzip(day.zipFile, destination);
+		if(csvFiles.isEmpty()) {
+			throw new IOException("No files in " + day.zipFile);
+		}
+		day.odma = new OneDayMarketAction(csvFiles.get(0), memoryMapped, rowErrorPolicy);
+		ParseReport report = day.odma.getParseReport();
+		if(report.getError() != null) {
+			throw new IOException("Could not read " + report.getSourceName(), report.getError());
+		}
+		if(report.isBudgetExceeded()) {
+			throw new IOException("Too many malformed rows: " + report);
+		}
+		return day;
+	}
+
+	// stage 3: write the day's spreadsheet, the biggest losers like ExcelWriter.createFile() does
+	private Day export(Day day, ReportTemplate template) throws IOException {
+		String baseName = outputDirectory + File.separator + day.date + "-movers";
+		if(exportXls) {
+			day.excelFile = baseName + ".xls";
+			ExcelWriter.createReport(day.odma, template, exportMovers, OneDayMarketAction.MoveDirection.LOSERS, day.excelFile);
+		}
+		for(MoversExporter.Format format : exportFormats) {
+			MoversExporter.writeDay(day.odma, baseName + "." + format.name().toLowerCase(Locale.ENGLISH), format);
+		}
+		return day;
+	}
+
+	// the end of the line: print the day's biggest gainers and then its biggest losers as CSV rows
+	// (only ever called on the thread running the job, so the one console exporter is never shared)
+	private void print(Day day, MoversExporter console) throws IOException {
+		System.out.println(day.date + ": " + day.odma.getParseReport() + (day.excelFile != null ? " -> " + day.excelFile : ""));
+		if(printTop > 0) {
+			for(OneDayMarketAction.MoveDirection direction : OneDayMarketAction.MoveDirection.values()) {
+				for(OneDayMarketAction.OneTickerOneDay otod : day.odma.getTopMovers(printTop, direction)) {
+					console.field(day.date);
+					console.field(otod.getTicker());
+					console.field(otod.getSeries());
+					console.field(otod.getClose());
+					console.field(otod.getPrevClose());
+					console.field(otod.getPercentageChange());
+					console.endRow();
+				}
+			}
+			console.flush();
+		}
+	}
+
+
+	private static String required(Properties config, String key) {
+		String value = config.getProperty(key);
+		if(value == null || value.trim().isEmpty()) {
+			throw new IllegalArgumentException("Missing \"" + key + "\" in the job configuration");
+		}
+		return value.trim();
+	}
+
+	private static int intValue(Properties config, String key, int defaultValue) {
+		String value = config.getProperty(key);
+		return (value == null || value.trim().isEmpty()) ? defaultValue : Integer.parseInt(value.trim());
+	}
+
+	private static long longValue(Properties config, String key, long defaultValue) {
+		String value = config.getProperty(key);
+		return (value == null || value.trim().isEmpty()) ? defaultValue : Long.parseLong(value.trim());
+	}
+
+	private static String emptyToNull(String value) {
+		return (value == null || value.trim().isEmpty()) ? null : value.trim();
+	}
+
+
+	// one day on its way through the pipeline, each stage fills in its part
+	static class Day {
+
+		final LocalDate date;
+		final String zipFile;
+		OneDayMarketAction odma;
+		String excelFile;
+
+		Day(LocalDate date, String zipFile) {
+			this.date = date;
+			this.zipFile = zipFile;
+		}
+
+		@Override
+		public String toString() {
+			return date.toString();
+		}
+	}
+
+}
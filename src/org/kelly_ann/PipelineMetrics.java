@@ -0,0 +1,299 @@
+package org.kelly_ann;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class PipelineMetrics {
+	// this class collects counters and timers for the download -> unzip -> parse -> sort -> export pipeline
+	// so a slow nightly run can be explained from numbers instead of from println output.
+	//
+	// it is built to stay out of the way of the hot paths:
+	// 1. every metric is a fixed enum constant, so recording one is an array lookup (no map, no String building)
+	// 2. the counts live in LongAdders, which many threads can add to without fighting over one memory location
+	// 3. a timer is one System.nanoTime() at the start and one at the end
+	// the numbers can be written out as JSON or in the Prometheus text format, to a file or over a small HTTP endpoint.
+	//
+	// every snapshot also includes the JVM's garbage collection counts and times and a timestamp, so a slow stage can
+	// be lined up against GC activity (or against a Flight Recorder recording taken with -XX:StartFlightRecording).
+
+	// Note: all these member functions are static so the pipeline code can record from anywhere without passing an object around
+
+	// the things we count
+	public enum Counter {
+		BYTES_DOWNLOADED("download_bytes_total", "Bytes downloaded from the exchange"),
+		FILES_DOWNLOADED("download_files_total", "Archives downloaded"),
+		BYTES_UNZIPPED("unzip_bytes_total", "Bytes written while unzipping"),
+		FILES_UNZIPPED("unzip_files_total", "Files extracted from archives"),
+		ROWS_PARSED("parse_rows_total", "EQ rows parsed into a market day"),
+		ROWS_SKIPPED("parse_rows_skipped_total", "Rows skipped while parsing (not EQ, or malformed)"),
+		ROWS_EXPORTED("export_rows_total", "Rows written to workbooks");
+
+		private final String metricName;
+		private final String help;
+
+		Counter(String metricName, String help) {
+			this.metricName = metricName;
+			this.help = help;
+		}
+	}
+
+	// the things we time
+	public enum Timer {
+		DOWNLOAD("download", "Time spent downloading archives"),
+		UNZIP("unzip", "Time spent unzipping archives"),
+		PARSE("parse", "Time spent parsing bhavcopy files"),
+		SORT("sort", "Time spent sorting or selecting movers"),
+		EXPORT("export", "Time spent writing workbooks");
+
+		private final String metricName;
+		private final String help;
+
+		Timer(String metricName, String help) {
+			this.metricName = metricName;
+			this.help = help;
+		}
+	}
+
+	private static final String PREFIX = "stockexchangeio_";
+
+	private static final LongAdder[] counts = new LongAdder[Counter.values().length];
+	private static final LongAdder[] timerCounts = new LongAdder[Timer.values().length];
+	private static final LongAdder[] timerNanos = new LongAdder[Timer.values().length];
+	private static final LongAccumulator[] timerMaxNanos = new LongAccumulator[Timer.values().length];
+	static {
+		for(int i = 0; i < counts.length; i++) {
+			counts[i] = new LongAdder();
+		}
+		for(int i = 0; i < timerCounts.length; i++) {
+			timerCounts[i] = new LongAdder();
+			timerNanos[i] = new LongAdder();
+			timerMaxNanos[i] = new LongAccumulator(Math::max, 0);
+		}
+	}
+
+	// switching this off makes recording (nearly) free, e.g. for benchmark runs
+	private static volatile boolean enabled = true;
+
+
+	public static void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+
+	// recording
+
+	public static void add(Counter counter, long amount) {
+		if(enabled) {
+			counts[counter.ordinal()].add(amount);
+		}
+	}
+
+	public static void increment(Counter counter) {
+		add(counter, 1);
+	}
+
+	// take the start time of something that will be passed to stop() later
+	public static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	// record how long it has been since start()
+	public static void stop(Timer timer, long startNanos) {
+		if(enabled && startNanos != 0) {
+			long elapsed = System.nanoTime() - startNanos;
+			int i = timer.ordinal();
+			timerCounts[i].increment();
+			timerNanos[i].add(elapsed);
+			timerMaxNanos[i].accumulate(elapsed);
+		}
+	}
+
+	// set every metric back to zero
+	public static void reset() {
+		for(LongAdder count : counts) {
+			count.reset();
+		}
+		for(int i = 0; i < timerCounts.length; i++) {
+			timerCounts[i].reset();
+			timerNanos[i].reset();
+			timerMaxNanos[i].reset();
+		}
+	}
+
+
+	// reading
+
+	public static long getCount(Counter counter) {
+		return counts[counter.ordinal()].sum();
+	}
+
+	public static long getTimerCount(Timer timer) {
+		return timerCounts[timer.ordinal()].sum();
+	}
+
+	public static long getTotalNanos(Timer timer) {
+		return timerNanos[timer.ordinal()].sum();
+	}
+
+	public static long getMaxNanos(Timer timer) {
+		return timerMaxNanos[timer.ordinal()].get();
+	}
+
+	// unzip throughput over every unzip so far, in bytes per second
+	public static double getUnzipBytesPerSecond() {
+		long nanos = getTotalNanos(Timer.UNZIP);
+		return nanos > 0 ? getCount(Counter.BYTES_UNZIPPED) * 1e9 / nanos : 0;
+	}
+
+
+	// exporting
+
+	// all the metrics as one JSON object
+	public static String toJson() {
+
+		StringBuilder sb = new StringBuilder(1024);
+		sb.append("{\n  \"timestamp\": ").append(System.currentTimeMillis());
+
+		sb.append(",\n  \"counters\": {");
+		for(Counter counter : Counter.values()) {
+			sb.append(counter.ordinal() == 0 ? "\n" : ",\n");
+			sb.append("    \"").append(counter.metricName).append("\": ").append(getCount(counter));
+		}
+		sb.append("\n  }");
+
+		sb.append(",\n  \"timers\": {");
+		for(Timer timer : Timer.values()) {
+			sb.append(timer.ordinal() == 0 ? "\n" : ",\n");
+			sb.append("    \"").append(timer.metricName).append("\": {\"count\": ").append(getTimerCount(timer))
+				.append(", \"totalSeconds\": ").append(getTotalNanos(timer) / 1e9)
+				.append(", \"maxSeconds\": ").append(getMaxNanos(timer) / 1e9).append('}');
+		}
+		sb.append("\n  }");
+
+		sb.append(",\n  \"unzipBytesPerSecond\": ").append(getUnzipBytesPerSecond());
+
+		sb.append(",\n  \"gc\": {");
+		boolean first = true;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			sb.append(first ? "\n" : ",\n");
+			first = false;
+			sb.append("    \"").append(gc.getName().replace("\"", "")).append("\": {\"collections\": ").append(gc.getCollectionCount())
+				.append(", \"seconds\": ").append(gc.getCollectionTime() / 1e3).append('}');
+		}
+		sb.append("\n  }\n}\n");
+
+		return sb.toString();
+
+	}
+
+	// all the metrics in the Prometheus text exposition format
+	public static String toPrometheus() {
+
+		StringBuilder sb = new StringBuilder(2048);
+
+		for(Counter counter : Counter.values()) {
+			String name = PREFIX + counter.metricName;
+			sb.append("# HELP ").append(name).append(' ').append(counter.help).append('\n');
+			sb.append("# TYPE ").append(name).append(" counter\n");
+			sb.append(name).append(' ').append(getCount(counter)).append('\n');
+		}
+
+		// timers are written as a summary (count + sum) plus a separate gauge for the longest one
+		for(Timer timer : Timer.values()) {
+			String name = PREFIX + timer.metricName + "_seconds";
+			sb.append("# HELP ").append(name).append(' ').append(timer.help).append('\n');
+			sb.append("# TYPE ").append(name).append(" summary\n");
+			sb.append(name).append("_count ").append(getTimerCount(timer)).append('\n');
+			sb.append(name).append("_sum ").append(getTotalNanos(timer) / 1e9).append('\n');
+			sb.append("# TYPE ").append(name).append("_max gauge\n");
+			sb.append(name).append("_max ").append(getMaxNanos(timer) / 1e9).append('\n');
+		}
+
+		sb.append("# TYPE ").append(PREFIX).append("unzip_bytes_per_second gauge\n");
+		sb.append(PREFIX).append("unzip_bytes_per_second ").append(getUnzipBytesPerSecond()).append('\n');
+
+		sb.append("# TYPE jvm_gc_collections_total counter\n");
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			sb.append("jvm_gc_collections_total{gc=\"").append(gc.getName()).append("\"} ").append(gc.getCollectionCount()).append('\n');
+		}
+		sb.append("# TYPE jvm_gc_collection_seconds_total counter\n");
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			sb.append("jvm_gc_collection_seconds_total{gc=\"").append(gc.getName()).append("\"} ").append(gc.getCollectionTime() / 1e3).append('\n');
+		}
+
+		return sb.toString();
+
+	}
+
+	public static void writeJson(String file) throws IOException {
+		writeFile(file, toJson());
+	}
+
+	public static void writePrometheus(String file) throws IOException {
+		writeFile(file, toPrometheus());
+	}
+
+	// write to a temp file first and rename it, so a scraper reading the file never sees half of it
+	private static void writeFile(String file, String text) throws IOException {
+		File target = new File(file);
+		File temp = new File(target.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(temp);
+		try {
+			fos.write(text.getBytes(StandardCharsets.UTF_8));
+		}
+		finally {
+			fos.close();
+		}
+		if(!temp.renameTo(target)) {
+			// some platforms won't rename over an existing file
+			target.delete();
+			if(!temp.renameTo(target)) {
+				throw new IOException("Could not replace " + file);
+			}
+		}
+	}
+
+
+	// serve the metrics over HTTP on the given port: /metrics in Prometheus format and /metrics.json as JSON
+	// the caller stops it with stop(0) on the returned server when the run is over
+	public static HttpServer serve(int port) throws IOException {
+
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				boolean json = exchange.getRequestURI().getPath().endsWith(".json");
+				byte[] body = (json ? toJson() : toPrometheus()).getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", json ? "application/json" : "text/plain; version=0.0.4");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(body);
+				}
+				finally {
+					out.close();
+				}
+			}
+		});
+		server.start();
+		return server;
+
+	}
+
+}
@@ -0,0 +1,139 @@
+package org.kelly_ann;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.poi.hssf.usermodel.HSSFDataFormat;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+
+public class ReportTemplate {
+	// this class is the starting point of every daily report workbook that ExcelWriter.createReports() writes:
+	// 1. an .xls template is read from disk once and kept as bytes, so each report is built from memory instead of
+	//    re-reading (or re-building) the same workbook for every day. POI workbooks can't be shared between threads,
+	//    so every report still gets its own copy, made from those bytes.
+	// 2. the cell styles of a report are made once per workbook (see Styles) and shared by every cell in the column.
+	//    an .xls file can hold only about 4000 styles, so a style per cell would break on a big report.
+	//    the number formats are Excel's built-in ones, so there is no format to look up or create per workbook.
+	//
+	// how a template is laid out: the report goes on its first sheet. if that sheet has a row 0 it is kept as the header
+	// (so the column titles can be changed), and if it has a row 1 the styles of its cells are used for the data cells
+	// of the matching columns (the row itself is written over). anything the template leaves out gets the defaults.
+	// the columns are Ticker, Close, Prev Close, %Change, like ExcelWriter.createFile().
+
+	static final int COL_TICKER = 0;
+	static final int COL_CLOSE = 1;
+	static final int COL_PREV_CLOSE = 2;
+	static final int COL_CHANGE = 3;
+	static final int COLUMNS = 4;
+
+	static final String[] HEADERS = {"Ticker", "Close", "Prev Close", "%Change"};
+
+	// the built-in formats of every .xls file, so their indexes are the same in every workbook
+	private static final short PRICE_FORMAT = HSSFDataFormat.getBuiltinFormat("#,##0.00");
+	private static final short PERCENT_FORMAT = HSSFDataFormat.getBuiltinFormat("0.00%");
+
+	// the template's bytes, or null for a plain workbook
+	private final byte[] templateBytes;
+
+
+	private ReportTemplate(byte[] templateBytes) {
+		this.templateBytes = templateBytes;
+	}
+
+	// read an .xls template into memory (it is checked by opening it once)
+	public static ReportTemplate load(String templateFile) throws IOException {
+		byte[] bytes = Files.readAllBytes(new File(templateFile).toPath());
+		HSSFWorkbook check = new HSSFWorkbook(new ByteArrayInputStream(bytes));
+		try {
+			if(check.getNumberOfSheets() == 0) {
+				throw new IOException("Template has no sheets: " + templateFile);
+			}
+		}
+		finally {
+			check.close();
+		}
+		return new ReportTemplate(bytes);
+	}
+
+	// no template: a workbook with one "Summary" sheet and the default styles
+	public static ReportTemplate blank() {
+		return new ReportTemplate(null);
+	}
+
+
+	// a new workbook for one report
+	// safe to call from many threads at once, each call gets its own workbook
+	HSSFWorkbook newWorkbook() throws IOException {
+		HSSFWorkbook workbook;
+		if(templateBytes == null) {
+			workbook = new HSSFWorkbook();
+			workbook.createSheet("Summary");
+		}
+		else {
+			workbook = new HSSFWorkbook(new ByteArrayInputStream(templateBytes));
+		}
+		return workbook;
+	}
+
+
+	// the styles of one report workbook, made once and then used for every cell
+	static final class Styles {
+
+		// by column, null leaves the cell with the workbook's default style
+		final CellStyle[] columns = new CellStyle[COLUMNS];
+
+		Styles(HSSFWorkbook workbook) {
+
+			Sheet sheet = workbook.getSheetAt(0);
+
+			// 1. the header row, written with a bold style unless the template has its own
+			Row headerRow = sheet.getRow(0);
+			if(headerRow == null) {
+				Font bold = workbook.createFont();
+				bold.setBold(true);
+				CellStyle header = workbook.createCellStyle();
+				header.setFont(bold);
+				headerRow = sheet.createRow(0);
+				for(int col = 0; col < COLUMNS; col++) {
+					Cell cell = headerRow.createCell(col);
+					cell.setCellValue(HEADERS[col]);
+					cell.setCellStyle(header);
+				}
+			}
+
+			// 2. the data styles, the template's style row wins over the defaults
+			Row styleRow = sheet.getRow(1);
+			CellStyle price = null;
+			CellStyle percent = null;
+			for(int col = 0; col < COLUMNS; col++) {
+				Cell styled = (styleRow == null) ? null : styleRow.getCell(col);
+				if(styled != null) {
+					columns[col] = styled.getCellStyle();
+				}
+				else if(col == COL_CLOSE || col == COL_PREV_CLOSE) {
+					if(price == null) {
+						price = workbook.createCellStyle();
+						price.setDataFormat(PRICE_FORMAT);
+					}
+					columns[col] = price;
+				}
+				else if(col == COL_CHANGE) {
+					if(percent == null) {
+						percent = workbook.createCellStyle();
+						percent.setDataFormat(PERCENT_FORMAT);
+					}
+					columns[col] = percent;
+				}
+			}
+
+		}
+	}
+
+}
@@ -0,0 +1,39 @@
+package org.kelly_ann;
+
+public class RowErrorPolicy {
+	// this class says what reading a bhavcopy should do with rows it can't make sense of
+	// (too few columns, a quoted field, a price that isn't a number):
+	// 1. the bad row is skipped and counted, and the rest of the file is still read
+	// 2. if a quarantine directory is set, the bad row is written to a sidecar file there with its line number and
+	//    the reason, so it can be looked at (and fixed, and re-run) later
+	// 3. once more than "maxBadRows" rows have been bad, the file is considered broken and reading stops
+	//    (the day's ParseReport then says isBudgetExceeded())
+	// the default is to skip and count every bad row, with no sidecar file.
+
+	private int maxBadRows = Integer.MAX_VALUE;
+	private String quarantineDirectory;
+
+
+	// the error budget: how many bad rows one file may have before we give up on it (0 = stop at the first one)
+	public void setMaxBadRows(int maxBadRows) {
+		if(maxBadRows < 0) {
+			throw new IllegalArgumentException("Error budget can't be negative: " + maxBadRows);
+		}
+		this.maxBadRows = maxBadRows;
+	}
+
+	// where to write the sidecar files of bad rows, one per input file (null = don't write them)
+	// pass the CSV files' own directory to get the sidecar right next to each one
+	public void setQuarantineDirectory(String quarantineDirectory) {
+		this.quarantineDirectory = quarantineDirectory;
+	}
+
+	public int getMaxBadRows() {
+		return maxBadRows;
+	}
+
+	public String getQuarantineDirectory() {
+		return quarantineDirectory;
+	}
+
+}
@@ -0,0 +1,84 @@
+package org.kelly_ann;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+// this class carries out a RowErrorPolicy while one file is being read: it counts the bad rows in the file's ParseReport,
+// writes them to the quarantine sidecar file and says when the error budget has run out.
+// note: this is package-private because it is an implementation detail of OneDayMarketAction
+class RowQuarantine implements BhavcopyParser.BadRowHandler {
+
+	private final RowErrorPolicy policy;
+	private final ParseReport report;
+
+	// only opened when the first bad row turns up, so a clean file leaves no sidecar behind
+	private BufferedWriter out;
+
+	RowQuarantine(RowErrorPolicy policy, ParseReport report) {
+		this.policy = policy;
+		this.report = report;
+	}
+
+
+	@Override
+	public boolean onBadRow(int lineNumber, String row, RuntimeException error) {
+
+		report.rowsRejected++;
+		if(policy.getQuarantineDirectory() != null) {
+			try {
+				quarantine(lineNumber, row, error);
+			}
+			catch(IOException e) {
+				throw new UncheckedIOException("Could not write quarantine file for " + report.getSourceName(), e);
+			}
+		}
+
+		if(report.rowsRejected > policy.getMaxBadRows()) {
+			report.budgetExceeded = true;
+			return false;
+		}
+		return true;
+
+	}
+
+	// one line per bad row: line number <TAB> reason <TAB> the row as it was
+	private void quarantine(int lineNumber, String row, RuntimeException error) throws IOException {
+		if(out == null) {
+			File file = new File(policy.getQuarantineDirectory(), sidecarName(report.getSourceName()));
+			file.getParentFile().mkdirs();
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+			out.write("# rows rejected from " + report.getSourceName() + ": line, reason, row");
+			out.newLine();
+			report.quarantineFile = file.getPath();
+		}
+		out.write(lineNumber + "\t" + error + "\t" + row);
+		out.newLine();
+	}
+
+	// "C:/data/cm17JUL2015bhav.csv" or "http://.../cm17JUL2015bhav.csv.zip!cm17JUL2015bhav.csv" -> "cm17JUL2015bhav.csv.quarantine.txt"
+	static String sidecarName(String sourceName) {
+		String name = sourceName;
+		for(char separator : new char[] {'/', '\\', '!'}) {
+			name = name.substring(name.lastIndexOf(separator) + 1);
+		}
+		return (name.isEmpty() ? "bhavcopy" : name) + ".quarantine.txt";
+	}
+
+	void close() {
+		if(out != null) {
+			try {
+				out.close();
+			}
+			catch(IOException e) {
+				e.printStackTrace();
+			}
+			out = null;
+		}
+	}
+
+}
@@ -0,0 +1,377 @@
+package org.kelly_ann;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StagedPipeline<I, O> {
+	// this class runs a chain of stages (e.g. download -> unzip & parse -> export) so that they all work at the same time:
+	// 1. every stage has its own worker threads, as many as suits it (e.g. several for network-bound downloads,
+	//    one per core for parsing)
+	// 2. neighbouring stages are connected by a bounded queue. when a stage falls behind its queue fills up and the
+	//    stage before it blocks on put(), so a fast stage can't pile up unbounded work in memory (backpressure)
+	// 3. the end of the input travels down the chain as a marker, so run() returns only once every item has been
+	//    through every stage (drained). shutdown() stops taking new inputs but still lets the items in flight finish.
+	//
+	// a stage that throws on an item records the failure and the item is dropped, the rest keep flowing. that goes for
+	// Errors too (e.g. an OutOfMemoryError, or a NoClassDefFoundError from a missing jar): a worker that died of one
+	// would take the end marker downstream early and leave the stage before it blocked on a full queue.
+	// a stage that returns null drops the item quietly (e.g. a holiday with no bhavcopy to download).
+	//
+	// pipelines are put together with start() and then(), e.g.
+	//   StagedPipeline.<LocalDate>start(4).then("download", 4, downloadStage).then("parse", 2, parseStage)
+
+	// one step of the pipeline
+	public interface Stage<A, B> {
+		B process(A input) throws Exception;
+	}
+
+	// takes the items coming out of the last stage. it is only ever called from the thread running run()
+	public interface Sink<B> {
+		void accept(B output) throws Exception;
+	}
+
+	// marks the end of the input on the queues
+	private static final Object END = new Object();
+
+	private final int queueCapacity;
+	private final List<StageDefinition> stages;
+
+	// set by shutdown(), checked before each new input is fed in
+	private volatile boolean shutdownRequested;
+
+
+	private StagedPipeline(int queueCapacity, List<StageDefinition> stages) {
+		this.queueCapacity = queueCapacity;
+		this.stages = stages;
+	}
+
+	// an empty pipeline, each queue between two stages holds at most queueCapacity items
+	public static <T> StagedPipeline<T, T> start(int queueCapacity) {
+		if(queueCapacity < 1) {
+			throw new IllegalArgumentException("Queue capacity must be at least 1: " + queueCapacity);
+		}
+		return new StagedPipeline<>(queueCapacity, new ArrayList<StageDefinition>());
+	}
+
+	// a pipeline with one more stage on the end, run by "workers" threads
+	public <N> StagedPipeline<I, N> then(String name, int workers, Stage<? super O, ? extends N> stage) {
+		if(workers < 1) {
+			throw new IllegalArgumentException("Stage " + name + " needs at least 1 worker: " + workers);
+		}
+		List<StageDefinition> longer = new ArrayList<>(stages);
+		longer.add(new StageDefinition(name, workers, stage));
+		return new StagedPipeline<>(queueCapacity, longer);
+	}
+
+
+	// stop feeding new inputs. items already in the pipeline still go through every stage, then run() returns
+	// this is safe to call from any thread, e.g. a shutdown hook
+	public void shutdown() {
+		shutdownRequested = true;
+	}
+
+	public boolean isShutdownRequested() {
+		return shutdownRequested;
+	}
+
+
+	// push every input through the pipeline, handing what comes out of the last stage to the sink,
+	// and return once everything has drained. if the calling thread is interrupted the workers are stopped at once.
+	@SuppressWarnings("unchecked")
+	public Result run(final Iterable<? extends I> inputs, Sink<? super O> sink) throws InterruptedException {
+
+		long start = System.nanoTime();
+		final Result result = new Result(stages);
+
+		// 1. one queue in front of every stage, plus one for the finished items
+		final List<BlockingQueue<Object>> queues = new ArrayList<>();
+		for(int i = 0; i <= stages.size(); i++) {
+			queues.add(new ArrayBlockingQueue<Object>(queueCapacity));
+		}
+
+		// 2. start the workers of every stage, and a feeder that puts the inputs on the first queue
+		List<ExecutorService> pools = new ArrayList<>();
+		for(int i = 0; i < stages.size(); i++) {
+			StageDefinition definition = stages.get(i);
+			ExecutorService pool = Executors.newFixedThreadPool(definition.workers, threadsNamed("pipeline-" + definition.name));
+			AtomicInteger running = new AtomicInteger(definition.workers);
+			for(int w = 0; w < definition.workers; w++) {
+				pool.execute(new Worker(definition, queues.get(i), queues.get(i + 1), running, result));
+			}
+			pools.add(pool);
+		}
+		ExecutorService feeder = Executors.newSingleThreadExecutor(threadsNamed("pipeline-feeder"));
+		pools.add(feeder);
+		feeder.execute(new Runnable() {
+			@Override
+			public void run() {
+				BlockingQueue<Object> first = queues.get(0);
+				try {
+					for(I input : inputs) {
+						if(shutdownRequested) {
+							break;
+						}
+						first.put(input); // blocks while the first stage is behind
+						result.fed.incrementAndGet();
+					}
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				catch(Throwable e) {
+					result.addFailure("feeder", null, e);
+				}
+				finally {
+					putQuietly(first, END);
+				}
+			}
+		});
+
+		// 3. hand the finished items to the sink until the end marker comes through
+		try {
+			BlockingQueue<Object> last = queues.get(stages.size());
+			Object item;
+			while((item = last.take()) != END) {
+				try {
+					sink.accept((O) item);
+					result.delivered.incrementAndGet();
+				}
+				catch(Throwable e) {
+					result.addFailure("sink", item, e);
+				}
+			}
+		}
+		catch(InterruptedException e) {
+			for(ExecutorService pool : pools) {
+				pool.shutdownNow();
+			}
+			throw e;
+		}
+
+		for(ExecutorService pool : pools) {
+			pool.shutdown();
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		result.elapsedMillis = (System.nanoTime() - start) / 1000000;
+		return result;
+
+	}
+
+	// put() that gives up quietly if the thread is being interrupted (only used for the end marker)
+	private static void putQuietly(BlockingQueue<Object> queue, Object item) {
+		try {
+			queue.put(item);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static ThreadFactory threadsNamed(final String prefix) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+
+	private static final class StageDefinition {
+
+		final String name;
+		final int workers;
+		final Stage<Object, Object> stage;
+
+		@SuppressWarnings("unchecked")
+		StageDefinition(String name, int workers, Stage<?, ?> stage) {
+			this.name = name;
+			this.workers = workers;
+			this.stage = (Stage<Object, Object>) stage;
+		}
+	}
+
+	// one worker thread of a stage: take an item, process it, pass the result on
+	private static final class Worker implements Runnable {
+
+		private final StageDefinition definition;
+		private final BlockingQueue<Object> in;
+		private final BlockingQueue<Object> out;
+		private final AtomicInteger running;
+		private final Result result;
+
+		Worker(StageDefinition definition, BlockingQueue<Object> in, BlockingQueue<Object> out, AtomicInteger running, Result result) {
+			this.definition = definition;
+			this.in = in;
+			this.out = out;
+			this.running = running;
+			this.result = result;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Object item;
+				while((item = in.take()) != END) {
+					long start = System.nanoTime();
+					try {
+						Object output = definition.stage.process(item);
+						if(output != null) {
+							out.put(output); // blocks while the next stage is behind
+						}
+						else {
+							result.dropped(definition.name);
+						}
+						result.processed(definition.name, System.nanoTime() - start);
+					}
+					catch(InterruptedException e) {
+						throw e;
+					}
+					catch(Throwable e) {
+						result.addFailure(definition.name, item, e);
+					}
+				}
+				// leave the marker for this stage's other workers
+				in.put(END);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finally {
+				// the last worker of the stage to finish passes the end on to the next stage
+				if(running.decrementAndGet() == 0) {
+					putQuietly(out, END);
+				}
+			}
+		}
+	}
+
+
+	// what happened during run(): per-stage counts and time, and every item that failed
+	public static class Result {
+
+		private final Map<String, AtomicLong[]> stageCounts = new LinkedHashMap<>(); // processed, dropped, failed, busy nanos
+		private final List<Failure> failures = Collections.synchronizedList(new ArrayList<Failure>());
+		private final AtomicLong fed = new AtomicLong();
+		private final AtomicLong delivered = new AtomicLong();
+		private long elapsedMillis;
+
+		Result(List<StageDefinition> stages) {
+			for(StageDefinition stage : stages) {
+				stageCounts.put(stage.name, new AtomicLong[] {new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong()});
+			}
+		}
+
+		void processed(String stage, long nanos) {
+			stageCounts.get(stage)[0].incrementAndGet();
+			stageCounts.get(stage)[3].addAndGet(nanos);
+		}
+
+		void dropped(String stage) {
+			stageCounts.get(stage)[1].incrementAndGet();
+		}
+
+		void addFailure(String stage, Object item, Throwable error) {
+			if(stageCounts.containsKey(stage)) {
+				stageCounts.get(stage)[2].incrementAndGet();
+			}
+			failures.add(new Failure(stage, item, error));
+		}
+
+		// items that went through the stage (including the ones it dropped)
+		public long getProcessed(String stage) {
+			return stageCounts.get(stage)[0].get();
+		}
+
+		// items the stage returned null for
+		public long getDropped(String stage) {
+			return stageCounts.get(stage)[1].get();
+		}
+
+		public long getFailed(String stage) {
+			return stageCounts.get(stage)[2].get();
+		}
+
+		// the time the stage's workers spent working (added up over all of them)
+		public long getBusyMillis(String stage) {
+			return stageCounts.get(stage)[3].get() / 1000000;
+		}
+
+		public long getFed() {
+			return fed.get();
+		}
+
+		public long getDelivered() {
+			return delivered.get();
+		}
+
+		public List<Failure> getFailures() {
+			synchronized(failures) {
+				return new ArrayList<>(failures);
+			}
+		}
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("Fed=").append(getFed()).append(", Delivered=").append(getDelivered())
+				.append(", Failed=").append(failures.size()).append(", Elapsed=").append(elapsedMillis).append("ms");
+			for(String stage : stageCounts.keySet()) {
+				sb.append("\n  ").append(stage).append(": processed=").append(getProcessed(stage))
+					.append(", dropped=").append(getDropped(stage)).append(", failed=").append(getFailed(stage))
+					.append(", busy=").append(getBusyMillis(stage)).append("ms");
+			}
+			return sb.toString();
+		}
+	}
+
+	// one item that a stage (or the sink) threw on
+	public static class Failure {
+
+		private final String stage;
+		private final Object item;
+		private final Throwable error;
+
+		Failure(String stage, Object item, Throwable error) {
+			this.stage = stage;
+			this.item = item;
+			this.error = error;
+		}
+
+		public String getStage() {
+			return stage;
+		}
+
+		public Object getItem() {
+			return item;
+		}
+
+		public Throwable getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			return stage + " failed on " + item + ": " + error;
+		}
+	}
+
+}
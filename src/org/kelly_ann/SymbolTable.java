@@ -0,0 +1,346 @@
+package org.kelly_ann;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class SymbolTable {
+	// this class gives every ticker and series name (e.g. "INFY", "EQ") a small int id that never changes, so:
+	// 1. a day stores two ints per ticker instead of two Strings, and every day shares the one copy of each name
+	// 2. comparing or hashing symbols is comparing ints
+	// 3. the parser can look a ticker up straight from the file's bytes, so a name it has seen before creates no String
+	// ids are handed out in order (0, 1, 2...) and never reused. the table can be saved to a file and loaded back
+	// on the next run, so a symbol keeps its id across runs and anything stored by id stays valid.
+	//
+	// the names are kept as bytes in one big byte[] (with an offset per id), which is what is saved to disk,
+	// plus one String per id that getName() hands out so callers always get the same instance.
+	// the hash table is an open-addressing int[] holding (id + 1), like MarketDay's ticker dictionary.
+	//
+	// adding is synchronized, so days parsed on different threads (e.g. by BackfillEngine) can share one table.
+	// looking a name up (idOf(), and intern() for a name we already have) takes no lock, so readers never queue up
+	// behind each other or behind the parser: the slots of the hash table are read and written with volatile semantics,
+	// and a slot is only filled after the id's name, hash and bytes are in place, so a reader that finds an id also
+	// sees all of them. a grown hash table is filled before it is swapped in. a name that is being added while a
+	// lookup runs may not be found by it, intern() then takes the lock and looks again before adding it.
+	// getName() doesn't lock: an id can only be known by a thread that the adding thread has already handed it to.
+
+	// the id getName() turns into null (MarketDay uses it for a null series)
+	public static final int NO_SYMBOL = -1;
+
+	private static final int MAGIC = 0x53594D42; // "SYMB"
+	private static final int FORMAT_VERSION = 1;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// the table every MarketDay uses unless it is given one of its own
+	private static volatile SymbolTable global = new SymbolTable();
+
+	// the names as bytes: name "id" is bytes[offsets[id]] ... bytes[offsets[id + 1] - 1]
+	// the arrays are volatile because lookups read them without the lock while add() may be swapping in grown copies
+	private volatile byte[] bytes = new byte[INITIAL_CAPACITY * 8];
+	private volatile int[] offsets = new int[INITIAL_CAPACITY + 1];
+
+	// the String handed out for each id, and each name's hash (the same value String.hashCode() gives)
+	private volatile String[] names = new String[INITIAL_CAPACITY];
+	private volatile int[] hashes = new int[INITIAL_CAPACITY];
+	private int size;
+
+	// (id + 1) per slot, 0 means the slot is free. kept at most half full
+	private volatile AtomicIntegerArray table = new AtomicIntegerArray(INITIAL_CAPACITY * 2);
+
+
+	// the table shared by every MarketDay that isn't given its own
+	public static SymbolTable global() {
+		return global;
+	}
+
+	// replace the shared table, e.g. with one loaded from last run's file
+	// note: do this at start-up, before any day is loaded, because days already loaded keep using the old table
+	public static void setGlobal(SymbolTable table) {
+		global = table;
+	}
+
+
+	// the id of a name, adding the name if it is new (null gives NO_SYMBOL)
+	public int intern(String name) {
+		int id = idOf(name);
+		return (id != NO_SYMBOL || name == null) ? id : internLocked(name);
+	}
+
+	private synchronized int internLocked(String name) {
+
+		// look again under the lock, another thread may have added it since
+		int hash = name.hashCode();
+		AtomicIntegerArray slots = table;
+		int mask = slots.length() - 1;
+		int slot = spread(hash) & mask;
+		int entry;
+		while((entry = slots.get(slot)) != 0) {
+			int id = entry - 1;
+			if(hashes[id] == hash && names[id].equals(name)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return add(name, name.getBytes(StandardCharsets.UTF_8), hash, slot);
+
+	}
+
+	// the id of the name held in buffer[start, end), adding it if it is new
+	// for a name we already have nothing is allocated and no lock is taken: the hash and the comparison work on the
+	// bytes themselves
+	public int intern(ByteBuffer buffer, int start, int end) {
+
+		// the byte hash below matches String.hashCode() for plain ASCII, anything else goes the String way
+		int hash = 0;
+		for(int i = start; i < end; i++) {
+			byte b = buffer.get(i);
+			if(b < 0) {
+				byte[] copy = new byte[end - start];
+				for(int j = 0; j < copy.length; j++) {
+					copy[j] = buffer.get(start + j);
+				}
+				return intern(decode(copy));
+			}
+			hash = 31 * hash + b;
+		}
+
+		int id = idOf(buffer, start, end, hash);
+		return (id != NO_SYMBOL) ? id : internLocked(buffer, start, end, hash);
+
+	}
+
+	private int idOf(ByteBuffer buffer, int start, int end, int hash) {
+		AtomicIntegerArray slots = table;
+		int mask = slots.length() - 1;
+		int slot = spread(hash) & mask;
+		int entry;
+		while((entry = slots.get(slot)) != 0) {
+			int id = entry - 1;
+			if(hashes[id] == hash && bytesEqual(id, buffer, start, end)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return NO_SYMBOL;
+	}
+
+	private synchronized int internLocked(ByteBuffer buffer, int start, int end, int hash) {
+
+		// look again under the lock, another thread may have added it since
+		AtomicIntegerArray slots = table;
+		int mask = slots.length() - 1;
+		int slot = spread(hash) & mask;
+		int entry;
+		while((entry = slots.get(slot)) != 0) {
+			int id = entry - 1;
+			if(hashes[id] == hash && bytesEqual(id, buffer, start, end)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		byte[] nameBytes = new byte[end - start];
+		for(int i = 0; i < nameBytes.length; i++) {
+			nameBytes[i] = buffer.get(start + i);
+		}
+		return add(new String(nameBytes, StandardCharsets.UTF_8), nameBytes, hash, slot);
+
+	}
+
+	// names are UTF-8, like intern(String) and load() use. bytes that aren't valid UTF-8 are read as ISO-8859-1 instead,
+	// which maps every byte to its own char: decoding them as UTF-8 would turn each bad byte into the same U+FFFD,
+	// and different names would end up as one String (and one id)
+	private static String decode(byte[] nameBytes) {
+		try {
+			return StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT)
+					.decode(ByteBuffer.wrap(nameBytes))
+					.toString();
+		}
+		catch(CharacterCodingException e) {
+			return new String(nameBytes, StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	// the id of a name, or NO_SYMBOL if the name has never been added. takes no lock (see the top of the class)
+	public int idOf(String name) {
+		if(name == null) {
+			return NO_SYMBOL;
+		}
+		int hash = name.hashCode();
+		AtomicIntegerArray slots = table;
+		int mask = slots.length() - 1;
+		int slot = spread(hash) & mask;
+		int entry;
+		while((entry = slots.get(slot)) != 0) {
+			int id = entry - 1;
+			if(hashes[id] == hash && names[id].equals(name)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return NO_SYMBOL;
+	}
+
+	// the name of an id, always the same String instance for the same id (NO_SYMBOL gives null)
+	public String getName(int id) {
+		if(id == NO_SYMBOL) {
+			return null;
+		}
+		String[] current = names;
+		if(id < 0 || id >= current.length || current[id] == null) {
+			throw new IndexOutOfBoundsException("Unknown symbol id " + id);
+		}
+		return current[id];
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+
+	// add a new name in the free slot found by the lookup (called with the lock held)
+	// everything about the id is written before its slot is set, the slot is what makes it visible to lookups
+	private int add(String name, byte[] nameBytes, int hash, int slot) {
+
+		if(nameBytes.length > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Symbol too long: " + nameBytes.length + " bytes");
+		}
+
+		int id = size;
+		if(id == hashes.length) {
+			int capacity = hashes.length * 2;
+			offsets = Arrays.copyOf(offsets, capacity + 1);
+			hashes = Arrays.copyOf(hashes, capacity);
+			names = Arrays.copyOf(names, capacity);
+		}
+		int start = offsets[id];
+		if(start + nameBytes.length > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(start + nameBytes.length, bytes.length * 2));
+		}
+		System.arraycopy(nameBytes, 0, bytes, start, nameBytes.length);
+		offsets[id + 1] = start + nameBytes.length;
+		hashes[id] = hash;
+		names[id] = name;
+		table.set(slot, id + 1);
+		size++;
+
+		if(size * 2 > table.length()) {
+			rebuildTable(table.length() * 2);
+		}
+		return id;
+
+	}
+
+	private boolean bytesEqual(int id, ByteBuffer buffer, int start, int end) {
+		int[] ends = offsets;
+		int from = ends[id];
+		if(ends[id + 1] - from != end - start) {
+			return false;
+		}
+		byte[] nameBytes = bytes;
+		for(int i = start; i < end; i++) {
+			if(nameBytes[from++] != buffer.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// the new table is only swapped in once it is full, lookups still running on the old one finish there
+	private void rebuildTable(int tableSize) {
+		AtomicIntegerArray grown = new AtomicIntegerArray(tableSize);
+		int mask = tableSize - 1;
+		for(int id = 0; id < size; id++) {
+			int slot = spread(hashes[id]) & mask;
+			while(grown.get(slot) != 0) {
+				slot = (slot + 1) & mask;
+			}
+			grown.set(slot, id + 1);
+		}
+		table = grown;
+	}
+
+	private static int spread(int h) {
+		return h ^ (h >>> 16);
+	}
+
+
+	// save every name, in id order, so load() gives every name its id back
+	// the file is written next to the old one and renamed over it, so a crash can't leave a half-written table
+	public synchronized void save(String file) throws IOException {
+
+		File target = new File(file);
+		File temp = new File(target.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(size);
+			for(int id = 0; id < size; id++) {
+				int length = offsets[id + 1] - offsets[id];
+				out.writeShort(length);
+				out.write(bytes, offsets[id], length);
+			}
+		}
+		finally {
+			out.close();
+		}
+		if(!temp.renameTo(target)) {
+			// some platforms won't rename over an existing file
+			target.delete();
+			if(!temp.renameTo(target)) {
+				throw new IOException("Could not replace " + file);
+			}
+		}
+
+	}
+
+	// read a table written by save()
+	public static SymbolTable load(String file) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if(in.readInt() != MAGIC) {
+				throw new IOException("Not a symbol table file: " + file);
+			}
+			int version = in.readInt();
+			if(version != FORMAT_VERSION) {
+				throw new IOException("Unsupported symbol table version " + version + " in " + file);
+			}
+			int count = in.readInt();
+			SymbolTable symbols = new SymbolTable();
+			for(int id = 0; id < count; id++) {
+				byte[] nameBytes = new byte[in.readUnsignedShort()];
+				in.readFully(nameBytes);
+				if(symbols.intern(new String(nameBytes, StandardCharsets.UTF_8)) != id) {
+					throw new IOException("Duplicate symbol at id " + id + " in " + file);
+				}
+			}
+			return symbols;
+		}
+		finally {
+			in.close();
+		}
+
+	}
+
+	// load the table from last run if there is one, otherwise start an empty one
+	public static SymbolTable loadOrCreate(String file) throws IOException {
+		return new File(file).isFile() ? load(file) : new SymbolTable();
+	}
+
+}
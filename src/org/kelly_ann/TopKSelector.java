@@ -0,0 +1,113 @@
+package org.kelly_ann;
+
+public class TopKSelector {
+	// this class picks the k largest (or smallest) values out of a double[] without sorting the whole array.
+	// it keeps a bounded heap of k ids: for n values that is O(n log k) work and O(k) extra memory
+	// instead of the O(n log n) and a full copy that Collections.sort() needs.
+	//
+	// how NaN is handled: NaN means "no move could be computed" (e.g. prevClose == 0) so NaN values are never selected.
+	// how ties are handled: when two values are equal the lower id wins, i.e. the ticker that came first in the file.
+
+	// Note: all these member functions are static since they only work on the arrays passed in
+
+	// return the ids of the k largest values of values[0 .. n-1], biggest first
+	public static int[] largest(double[] values, int n, int k) {
+		return select(values, n, k, true);
+	}
+
+	// return the ids of the k smallest values of values[0 .. n-1], smallest first
+	public static int[] smallest(double[] values, int n, int k) {
+		return select(values, n, k, false);
+	}
+
+
+	private static int[] select(double[] values, int n, int k, boolean largest) {
+
+		if(k < 0) {
+			throw new IllegalArgumentException("k must not be negative: " + k);
+		}
+
+		// the heap holds ids, ordered so that the "weakest" of the kept values is always at heap[0]
+		// i.e. for the largest values it is a min-heap, for the smallest values a max-heap
+		int[] heap = new int[Math.min(k, n)];
+		int heapSize = 0;
+
+		for(int id = 0; id < n; id++) {
+			double value = values[id];
+			if(Double.isNaN(value)) {
+				continue;
+			}
+
+			if(heapSize < heap.length) {
+				// still filling up: add at the bottom and move it up to its place
+				heap[heapSize] = id;
+				siftUp(heap, heapSize, values, largest);
+				heapSize++;
+			}
+			else if(heapSize > 0 && beats(values, id, heap[0], largest)) {
+				// better than the weakest one we kept: replace it and move the new one down to its place
+				heap[0] = id;
+				siftDown(heap, heapSize, 0, values, largest);
+			}
+		}
+
+		// empty the heap from the weakest to the strongest, filling the result from the back
+		int[] result = new int[heapSize];
+		for(int i = heapSize - 1; i >= 0; i--) {
+			result[i] = heap[0];
+			heapSize--;
+			heap[0] = heap[heapSize];
+			siftDown(heap, heapSize, 0, values, largest);
+		}
+		return result;
+
+	}
+
+
+	// true if id "a" should rank ahead of id "b"
+	private static boolean beats(double[] values, int a, int b, boolean largest) {
+		double va = values[a];
+		double vb = values[b];
+		if(va != vb) {
+			return largest ? va > vb : va < vb;
+		}
+		return a < b;
+	}
+
+	private static void siftUp(int[] heap, int index, double[] values, boolean largest) {
+		int id = heap[index];
+		while(index > 0) {
+			int parent = (index - 1) >>> 1;
+			// the parent must be weaker than (rank behind) the child, otherwise we are done
+			if(!beats(values, heap[parent], id, largest)) {
+				break;
+			}
+			heap[index] = heap[parent];
+			index = parent;
+		}
+		heap[index] = id;
+	}
+
+	private static void siftDown(int[] heap, int heapSize, int index, double[] values, boolean largest) {
+		if(heapSize == 0) {
+			return;
+		}
+		int id = heap[index];
+		int half = heapSize >>> 1;
+		while(index < half) {
+			int child = 2 * index + 1;
+			int right = child + 1;
+			// pick the weaker of the two children
+			if(right < heapSize && beats(values, heap[child], heap[right], largest)) {
+				child = right;
+			}
+			if(!beats(values, id, heap[child], largest)) {
+				break;
+			}
+			heap[index] = heap[child];
+			index = child;
+		}
+		heap[index] = id;
+	}
+
+}
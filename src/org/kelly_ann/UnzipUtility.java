@@ -1,17 +1,33 @@
 package org.kelly_ann;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
@@ -30,6 +46,18 @@ public class UnzipUtility {
 	
 	private static final int BUFFER_SIZE = 4096;
 	
+	// the parallel unzip moves much bigger chunks at a time, so there are far fewer read and write calls per file
+	private static final int PARALLEL_BUFFER_SIZE = 1024 * 1024;
+	
+	// one such buffer per worker thread, reused for every entry it extracts. direct memory is only given back when the
+	// buffer is garbage collected, so a new one per entry could run out of it on an archive with many entries
+	private static final ThreadLocal<ByteBuffer> PARALLEL_BUFFERS = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(PARALLEL_BUFFER_SIZE);
+		}
+	};
+	
 	
 	// this will take in the url of a zip file to download, a local dir to download it to, and the destination to unzip it to
 	// it will output  a list of the unzipped files
@@ -38,20 +66,21 @@ public class UnzipUtility {
 		@SuppressWarnings("unused")
 		List<String> unzippedFileList = new ArrayList<>();
 		
-		// create URL object for pointing to the zip file/resource on the internet
-		URL zipFileUrl = new URL(urlString);
+		download(urlString, zipFilePath);
 		
-		// note: we need the user agent so that the NSE (india's stock exchange) will allow the file to be downloaded
-		// why? it will identify the traffic we send as coming from a browser (i.e. via human input)
-		// got this from: www.whatsmyuseragent.com (can also Google it)
-		String myUserAgentString = "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/47.0.2526.106 Safari/537.36";
+		// now do the actual unzipping of the file and return the list of unzipped files
+		return unzip(zipFilePath, destDirectory);
 		
-		// create an object to represent the url connection then open the connection (i.e. connect to the link)
-		URLConnection c = zipFileUrl.openConnection();
+	}
+	
+	// the download half of downloadAndUnzip(): fetch the url into a local file and return that file's path
+	// (the staged pipeline runs this on its own threads, apart from the unzipping)
+	public static String download(String urlString, String zipFilePath) throws IOException {
 		
-		// set the request's "User-Agent" property
-		// this will make it so that the website will think that the request is coming from a browser
-		c.setRequestProperty("User-Agent", myUserAgentString);
+		long downloadStart = PipelineMetrics.start();
+		
+		// create a connection to the zip file/resource on the internet
+		URLConnection c = openConnection(urlString);
 		
 		// more standard boiler-plate code coming up
 		// this will download the zip file from the url to the file path specified on the local computer 
@@ -66,18 +95,278 @@ public class UnzipUtility {
 		
 		//get the channel associated with this file output stream and transfer the bytes from 
 		// the zip's byte channel (online) into the file channel (locally).
-		fos.getChannel().transferFrom(zipByteChannel, 0, Long.MAX_VALUE);
+		long downloaded = fos.getChannel().transferFrom(zipByteChannel, 0, Long.MAX_VALUE);
 		fos.close();
+		// and let go of the connection, the pipeline downloads many files from one process
+		zipByteChannel.close();
 		
-		// now do the actual unzipping of the file and return the list of unzipped files
-		return unzip(zipFilePath, destDirectory);
+		PipelineMetrics.stop(PipelineMetrics.Timer.DOWNLOAD, downloadStart);
+		PipelineMetrics.add(PipelineMetrics.Counter.BYTES_DOWNLOADED, downloaded);
+		PipelineMetrics.increment(PipelineMetrics.Counter.FILES_DOWNLOADED);
+		
+		return zipFilePath;
+		
+	}
+	
+	// the same as download(), but the archive is kept in memory, for callers that want to let go of the connection
+	// (e.g. a per-host limit) before they start parsing. a bhavcopy archive is well under a megabyte
+	public static byte[] downloadBytes(String urlString) throws IOException {
+		
+		long downloadStart = PipelineMetrics.start();
+		URLConnection c = openConnection(urlString);
+		
+		InputStream in = c.getInputStream();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(c.getContentLength() > 0 ? c.getContentLength() : 64 * 1024);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while((read = in.read(buffer)) != -1) {
+				bytes.write(buffer, 0, read);
+			}
+		}
+		finally {
+			in.close();
+		}
+		
+		PipelineMetrics.stop(PipelineMetrics.Timer.DOWNLOAD, downloadStart);
+		PipelineMetrics.add(PipelineMetrics.Counter.BYTES_DOWNLOADED, bytes.size());
+		PipelineMetrics.increment(PipelineMetrics.Counter.FILES_DOWNLOADED);
+		
+		return bytes.toByteArray();
+		
+	}
+	
+	// the same as downloadAndUnzip() above, but the archive comes from (and is kept in) a DownloadCache
+	// so an archive we have downloaded before is unzipped straight from disk without touching the network
+	public static List<String> downloadAndUnzip(DownloadCache cache, String urlString, String destDirectory) throws IOException {
+		
+		// unzip from a link to (or copy of) the cached archive, which eviction can't delete while we read it
+		new File(destDirectory).mkdirs();
+		File zipFile = File.createTempFile("archive", ".zip", new File(destDirectory));
+		try {
+			return unzip(cache.fetchTo(urlString, zipFile.getPath()), destDirectory);
+		}
+		finally {
+			zipFile.delete();
+		}
+		
+	}
+	
+	// this opens a connection to the url, looking like a browser so that the exchange lets us download from it
+	// note: this works for "file:" urls too, which is handy for testing against a local copy of the archives
+	static URLConnection openConnection(String urlString) throws IOException {
+		
+		// create URL object for pointing to the zip file/resource on the internet
+		URL zipFileUrl = new URL(urlString);
+		
+		// note: we need the user agent so that the NSE (india's stock exchange) will allow the file to be downloaded
+		// why? it will identify the traffic we send as coming from a browser (i.e. via human input)
+		// got this from: www.whatsmyuseragent.com (can also Google it)
+		String myUserAgentString = "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/47.0.2526.106 Safari/537.36";
+		
+		// create an object to represent the url connection then open the connection (i.e. connect to the link)
+		URLConnection c = zipFileUrl.openConnection();
+		
+		// set the request's "User-Agent" property
+		// this will make it so that the website will think that the request is coming from a browser
+		c.setRequestProperty("User-Agent", myUserAgentString);
+		
+		return c;
+		
+	}
+	
+	
+	// this is the streaming version of downloadAndUnzip() + new OneDayMarketAction(csvFile):
+	// the downloaded bytes go straight through a ZipInputStream into the bhavcopy parser, so nothing touches the disk.
+	// if spillZipFilePath is not null, a copy of the archive is also written there as it streams past (for audit/replay).
+	public static OneDayMarketAction downloadAndParse(String urlString, String spillZipFilePath) throws IOException {
+		return downloadAndParse(urlString, spillZipFilePath, new RowErrorPolicy());
+	}
+	
+	// the same, with the given policy for malformed rows (see RowErrorPolicy)
+	public static OneDayMarketAction downloadAndParse(String urlString, String spillZipFilePath, RowErrorPolicy policy) throws IOException {
+		
+		// the download timer stops once the archive has come in, the parse that follows is timed as PARSE on its own
+		long downloadStart = PipelineMetrics.start();
+		URLConnection c = openConnection(urlString);
+		
+		CountingInputStream in = new CountingInputStream(c.getInputStream());
+		try {
+			return parseZipStream(in, urlString, spillZipFilePath, policy, downloadStart);
+		}
+		finally {
+			in.close();
+			PipelineMetrics.add(PipelineMetrics.Counter.BYTES_DOWNLOADED, in.count);
+			PipelineMetrics.increment(PipelineMetrics.Counter.FILES_DOWNLOADED);
+		}
+		
+	}
+	
+	// read a zipped bhavcopy from any input stream (a url, a local file, a socket...) and parse its CSV entry
+	// note: the caller owns the input stream and is responsible for closing it
+	public static OneDayMarketAction parseZipStream(InputStream zipStream, String sourceName, String spillZipFilePath) throws IOException {
+		return parseZipStream(zipStream, sourceName, spillZipFilePath, new RowErrorPolicy());
+	}
+	
+	public static OneDayMarketAction parseZipStream(InputStream zipStream, String sourceName, String spillZipFilePath, RowErrorPolicy policy) throws IOException {
+		return parseZipStream(zipStream, sourceName, spillZipFilePath, policy, 0);
+	}
+	
+	// downloadStart (from PipelineMetrics.start(), or 0 for none) is the download timer to stop once the stream is read
+	private static OneDayMarketAction parseZipStream(InputStream zipStream, String sourceName, String spillZipFilePath, RowErrorPolicy policy,
+			long downloadStart) throws IOException {
+		
+		// if we've been asked to keep a copy, every byte the ZipInputStream reads is also written to the spill file
+		OutputStream spill = null;
+		if(spillZipFilePath != null) {
+			spill = new BufferedOutputStream(new FileOutputStream(spillZipFilePath));
+			zipStream = new TeeInputStream(zipStream, spill);
+		}
+		
+		try {
+			ZipInputStream zipIn = new ZipInputStream(zipStream);
+			
+			// the bhavcopy archive holds one CSV file, we use the first file entry we come across
+			ZipEntry zipEntry = zipIn.getNextEntry();
+			while(zipEntry != null && zipEntry.isDirectory()) {
+				zipEntry = zipIn.getNextEntry();
+			}
+			if(zipEntry == null) {
+				throw new IOException("No file entry found in zip archive " + sourceName);
+			}
+			
+			// inflate the entry into memory
+			ByteBuffer csvBytes = readEntry(zipIn, zipEntry);
+			
+			// make sure the rest of the archive (other entries, the central directory) goes through the tee too
+			// otherwise the spilled copy would be cut off and not be a valid zip file
+			if(spill != null) {
+				byte[] rest = new byte[BUFFER_SIZE];
+				while(zipStream.read(rest) != -1) {
+					// just draining
+				}
+			}
+			PipelineMetrics.stop(PipelineMetrics.Timer.DOWNLOAD, downloadStart);
+			
+			// and parse it from memory
+			return new OneDayMarketAction(csvBytes, sourceName + "!" + zipEntry.getName(), policy);
+		}
+		finally {
+			if(spill != null) {
+				spill.close();
+			}
+		}
 		
 	}
 	
+	// read the current zip entry fully into a buffer
+	// the uncompressed size is used to size the buffer when the archive tells us what it is. the buffer gets one spare
+	// byte so the read that finds the end of the entry has room to ask, otherwise a full buffer would be doubled
+	// (and copied) just to learn there is nothing more
+	private static ByteBuffer readEntry(ZipInputStream zipIn, ZipEntry zipEntry) throws IOException {
+		
+		long size = zipEntry.getSize();
+		byte[] bytes = new byte[(size > 0 && size < Integer.MAX_VALUE - 1) ? (int) size + 1 : BUFFER_SIZE * 16];
+		int length = 0;
+		int read = 0;
+		while((read = zipIn.read(bytes, length, bytes.length - length)) != -1) {
+			length += read;
+			if(length == bytes.length) {
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			}
+		}
+		
+		return ByteBuffer.wrap(bytes, 0, length);
+		
+	}
+	
+	// an input stream that counts the bytes read through it, for the download metrics
+	private static class CountingInputStream extends FilterInputStream {
+		
+		private long count;
+		
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b != -1) {
+				count++;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if(read > 0) {
+				count += read;
+			}
+			return read;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+		
+	}
+	
+	// an input stream that copies everything read through it into an output stream
+	private static class TeeInputStream extends FilterInputStream {
+		
+		private final OutputStream copy;
+		
+		TeeInputStream(InputStream in, OutputStream copy) {
+			super(in);
+			this.copy = copy;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b != -1) {
+				copy.write(b);
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if(read > 0) {
+				copy.write(b, off, read);
+			}
+			return read;
+		}
+		
+		// skipped bytes have to be read so they can be copied
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] skipped = new byte[(int) Math.min(n, BUFFER_SIZE)];
+			int read = read(skipped, 0, skipped.length);
+			return Math.max(read, 0);
+		}
+		
+		// mark/reset would make us copy the same bytes twice
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+		
+	}
+	
+	
 	// this will take the name of the zip file and the destination directory to extract it to and 
 	// return a list of the files that were unzipped.
 	public static List<String> unzip(String zipFilePath, String destDirectory) throws IOException {
 		
+		long unzipStart = PipelineMetrics.start();
+		
 		// this will keep track of the indiv. files that have been unzipped from the zip file
 		List<String> unzippedFileList = new ArrayList<>();
 		
@@ -103,8 +392,13 @@ public class UnzipUtility {
 			String filePath = destDirectory + File.separator + zipEntry.getName(); //File.seperator is a static variable that is OS-specific
 			//System.out.println(filePath); // this will show what each entry is
 			
+			// refuse entries like "../../foo" that would be written outside of the destination directory
+			checkInsideDirectory(destDir, filePath, zipEntry.getName());
+			
 			// if we have a file and not a dir, extract it and add it name to the unzipped file list
 			if(!zipEntry.isDirectory()) {
+				// not every archive has entries for its directories, so make sure the file's directory is there
+				new File(filePath).getParentFile().mkdirs();
 				String oneUnzippedFile = extractFile(zipIn, filePath);
 				unzippedFileList.add(oneUnzippedFile);
 			}
@@ -120,11 +414,146 @@ public class UnzipUtility {
 		
 		zipIn.close();
 		
+		PipelineMetrics.stop(PipelineMetrics.Timer.UNZIP, unzipStart);
+		PipelineMetrics.add(PipelineMetrics.Counter.FILES_UNZIPPED, unzippedFileList.size());
+		
 		return unzippedFileList;
 		
 	}
 	
 	
+	// the parallel version of unzip(): the archive is opened with ZipFile (which can read any entry at any time, unlike
+	// ZipInputStream which has to walk the archive front to back) and the entries are inflated at the same time on
+	// "threads" threads. each entry is written through a FileChannel with a large direct buffer into a file that is
+	// sized up front from the entry's uncompressed size.
+	// the list of extracted files comes back in the same (archive) order as unzip() gives.
+	public static List<String> unzipParallel(String zipFilePath, String destDirectory, int threads) throws IOException {
+		
+		long unzipStart = PipelineMetrics.start();
+		
+		final File destDir = new File(destDirectory);
+		if(!destDir.exists()){
+			destDir.mkdirs();
+		}
+		
+		final ZipFile zipFile = new ZipFile(zipFilePath);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+		try {
+			// 1. check every path and create the directories before any work is handed out, so a bad entry late in
+			//    the archive fails the whole unzip before a single file has been written
+			List<ZipEntry> fileEntries = new ArrayList<>();
+			List<String> filePaths = new ArrayList<>();
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while(entries.hasMoreElements()) {
+				ZipEntry zipEntry = entries.nextElement();
+				String filePath = destDirectory + File.separator + zipEntry.getName();
+				checkInsideDirectory(destDir, filePath, zipEntry.getName());
+				
+				if(zipEntry.isDirectory()) {
+					new File(filePath).mkdirs();
+				}
+				else {
+					fileEntries.add(zipEntry);
+					filePaths.add(filePath);
+				}
+			}
+			
+			// 2. one task per file entry
+			List<Future<String>> extracted = new ArrayList<>(fileEntries.size());
+			for(int i = 0; i < fileEntries.size(); i++) {
+				final ZipEntry zipEntry = fileEntries.get(i);
+				final String filePath = filePaths.get(i);
+				extracted.add(pool.submit(() -> extractFile(zipFile, zipEntry, filePath)));
+			}
+			
+			// 3. wait for them in archive order
+			List<String> unzippedFileList = new ArrayList<>(extracted.size());
+			for(Future<String> oneFile : extracted) {
+				unzippedFileList.add(getResult(oneFile));
+			}
+			PipelineMetrics.stop(PipelineMetrics.Timer.UNZIP, unzipStart);
+			PipelineMetrics.add(PipelineMetrics.Counter.FILES_UNZIPPED, unzippedFileList.size());
+			return unzippedFileList;
+		}
+		finally {
+			// stop whatever is still running (after a failure) and let it finish before the ZipFile it reads from is closed
+			pool.shutdownNow();
+			try {
+				pool.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			zipFile.close();
+		}
+		
+	}
+	
+	// inflate one entry of a ZipFile straight into a FileChannel
+	private static String extractFile(ZipFile zipFile, ZipEntry zipEntry, String filePath) throws IOException {
+		
+		File file = new File(filePath);
+		file.getParentFile().mkdirs();
+		
+		InputStream in = zipFile.getInputStream(zipEntry);
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			// size the file up front so the file system can lay it out in one go (and any old longer file is cut back)
+			long size = zipEntry.getSize();
+			out.setLength(size > 0 ? size : 0);
+			
+			ReadableByteChannel source = Channels.newChannel(in);
+			FileChannel target = out.getChannel();
+			ByteBuffer buffer = PARALLEL_BUFFERS.get();
+			buffer.clear();
+			long written = 0;
+			while(source.read(buffer) != -1) {
+				buffer.flip();
+				while(buffer.hasRemaining()) {
+					written += target.write(buffer);
+				}
+				buffer.clear();
+			}
+			// the size in the archive was only a hint, make the file exactly as long as what we inflated
+			out.setLength(written);
+			PipelineMetrics.add(PipelineMetrics.Counter.BYTES_UNZIPPED, written);
+		}
+		finally {
+			out.close();
+			in.close();
+		}
+		return filePath;
+		
+	}
+	
+	// unwrap a task's result, passing its IOException on as it was
+	private static String getResult(Future<String> task) throws IOException {
+		try {
+			return task.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while unzipping");
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	// a "zip slip" is an entry name like "../../etc/foo" that would end up outside of the directory we unzip into
+	// so we compare the real (canonical) paths and refuse anything that isn't inside the destination directory
+	private static void checkInsideDirectory(File destDir, String filePath, String entryName) throws IOException {
+		String destPath = destDir.getCanonicalPath() + File.separator;
+		String entryPath = new File(filePath).getCanonicalPath();
+		if(!entryPath.startsWith(destPath) && !(entryPath + File.separator).equals(destPath)) {
+			throw new IOException("Zip entry is outside of the target directory: " + entryName);
+		}
+	}
+	
+	
 	// this method will take in a zip input stream for a zip file and a file path to extract the files in the zip file to
 	// note this is private because it is an "implementation detail" of the unzip() method so the outside code need not know about it
 	private static String extractFile(ZipInputStream zipIn, String filePath) throws IOException {
@@ -139,13 +568,16 @@ public class UnzipUtility {
 		
 		// read the zip file and write the file to the destination path
 		int read = 0;
+		long written = 0;
 		while((read=zipIn.read(bytesIn)) != -1) {
 			
 			// write to the buffered output stream from the byte[] starting at index 0 for a length of "read" (i.e. the # of bytes read in).
 			bos.write(bytesIn, 0, read);
+			written += read;
 			
 		}
 		bos.close();
+		PipelineMetrics.add(PipelineMetrics.Counter.BYTES_UNZIPPED, written);
 		
 		// if we get here it means that we have successfully unzipped the file
 		
@@ -156,14 +588,19 @@ public class UnzipUtility {
 	
 	
 	// adding this as my own K-A personal understanding test method
+	// it works for any single file, e.g. a CSV or a MarketDaySnapshot file we want to archive
 	// steps to zip a file are: read in with a input stream, add file name to a ZipEntry and output it to a ZipOutputStream
 	public static String zip(String unzippedFileLocation, String zipFileDest) throws IOException {
 		
 		// object to represent the unzipped file
 		File unzippedFile = new File(unzippedFileLocation);
 		
-		// this needs the "/" before it for the file name to work later
-		String filename = unzippedFileLocation.substring(unzippedFileLocation.lastIndexOf("/") + 1, unzippedFileLocation.lastIndexOf("."));
+		// the zip file is named after the file without its extension, e.g. foo.csv -> foo.zip
+		// note: File.getName() copes with either kind of path separator, and files with no extension keep their whole name
+		String filename = unzippedFile.getName();
+		if(filename.lastIndexOf(".") > 0) {
+			filename = filename.substring(0, filename.lastIndexOf("."));
+		}
 		
 		// object to represent the zipped file's destination directory
 		File destDir = new File(zipFileDest);
@@ -208,4 +645,19 @@ public class UnzipUtility {
 		return zippedFile.getAbsolutePath();
 		
 	}
+	
+	
+	// pass this as the compression level to zip() below to store the files without compressing them
+	public static final int STORED = ParallelZipWriter.STORED;
+	
+	// the multi-file version of zip(): every file (and every file under each directory) goes into one archive.
+	// the entries are compressed at the same time on "threads" threads and then joined into one valid zip file.
+	// compressionLevel is a java.util.zip.Deflater level (0-9 or Deflater.DEFAULT_COMPRESSION) or STORED.
+	// if storeCompressedFiles is true, files that are already compressed (e.g. .xlsx workbooks, .zip) are stored as-is.
+	// it returns the names of the entries in the archive.
+	public static List<String> zip(List<String> inputPaths, String zipFilePath, int compressionLevel, boolean storeCompressedFiles, int threads) throws IOException {
+		
+		return new ParallelZipWriter(compressionLevel, storeCompressedFiles, threads).write(inputPaths, zipFilePath);
+		
+	}
 }